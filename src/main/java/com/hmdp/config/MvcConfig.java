@@ -1,13 +1,16 @@
 package com.hmdp.config;
 
+import com.hmdp.utils.AdminInterceptor;
 import com.hmdp.utils.LoginInterceptor;
 import com.hmdp.utils.RefreshTokenInterceptor;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.web.servlet.config.annotation.InterceptorRegistry;
 import org.springframework.web.servlet.config.annotation.WebMvcConfigurer;
 
 import javax.annotation.Resource;
+import java.util.Set;
 
 @Configuration
 public class MvcConfig implements WebMvcConfigurer {
@@ -15,6 +18,9 @@ public class MvcConfig implements WebMvcConfigurer {
     @Resource
     private StringRedisTemplate stringRedisTemplate;
 
+    @Value("${hmdp.admin.user-ids:}")
+    private Set<Long> adminUserIds;
+
     @Override
     public void addInterceptors(InterceptorRegistry registry) {
         // 登录拦截器
@@ -29,6 +35,8 @@ public class MvcConfig implements WebMvcConfigurer {
                         "/user/login"
 
         ).order(1);
+        // 运维接口拦截器
+        registry.addInterceptor(new AdminInterceptor(adminUserIds)).addPathPatterns("/admin/**").order(2);
         // token刷新拦截器
         registry.addInterceptor(new RefreshTokenInterceptor(stringRedisTemplate)).addPathPatterns("/**").order(0);
     }
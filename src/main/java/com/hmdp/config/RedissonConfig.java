@@ -1,9 +1,13 @@
 package com.hmdp.config;
 
 
+import cn.hutool.core.util.StrUtil;
 import org.redisson.Redisson;
+import org.redisson.config.ClusterServersConfig;
 import org.redisson.config.Config;
+import org.redisson.config.SingleServerConfig;
 import org.redisson.api.RedissonClient;
+import org.springframework.boot.autoconfigure.data.redis.RedisProperties;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 
@@ -11,10 +15,27 @@ import org.springframework.context.annotation.Configuration;
 public class RedissonConfig {
 
     @Bean
-    public RedissonClient redissonClient(){
-        // 配置
+    public RedissonClient redissonClient(RedisProperties redisProperties){
+        // 配置，与StringRedisTemplate使用同一个Redis
         Config config = new Config();
-        config.useSingleServer().setAddress("redis://127.0.0.1:6379");
+        RedisProperties.Cluster cluster = redisProperties.getCluster();
+        if (cluster != null && cluster.getNodes() != null && !cluster.getNodes().isEmpty()) {
+            // 集群模式：配置了 spring.redis.cluster.nodes
+            ClusterServersConfig clusterConfig = config.useClusterServers();
+            for (String node : cluster.getNodes()) {
+                clusterConfig.addNodeAddress("redis://" + node);
+            }
+            if (StrUtil.isNotBlank(redisProperties.getPassword())) {
+                clusterConfig.setPassword(redisProperties.getPassword());
+            }
+        } else {
+            // 单机模式
+            SingleServerConfig serverConfig = config.useSingleServer()
+                    .setAddress("redis://" + redisProperties.getHost() + ":" + redisProperties.getPort());
+            if (StrUtil.isNotBlank(redisProperties.getPassword())) {
+                serverConfig.setPassword(redisProperties.getPassword());
+            }
+        }
         // 创建RedissonClient对象
 
         return Redisson.create(config);
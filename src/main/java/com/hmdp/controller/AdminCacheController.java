@@ -0,0 +1,32 @@
+package com.hmdp.controller;
+
+
+import com.hmdp.dto.Result;
+import com.hmdp.utils.CacheClient;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RestController;
+
+import javax.annotation.Resource;
+
+/**
+ * <p>
+ *  缓存运维接口，只允许 hmdp.admin.user-ids 中的用户访问
+ * </p>
+ */
+@RestController
+@RequestMapping("/admin/cache")
+public class AdminCacheController {
+
+    @Resource
+    private CacheClient cacheClient;
+
+    /**
+     * 查询缓存命中率
+     * @return 本地缓存大小、各key前缀的本地命中率和总命中率
+     */
+    @GetMapping("stats")
+    public Result cacheStats() {
+        return Result.ok(cacheClient.stats());
+    }
+}
@@ -0,0 +1,74 @@
+package com.hmdp.controller;
+
+
+import com.hmdp.dto.Result;
+import com.hmdp.service.IVoucherOrderService;
+import com.hmdp.utils.SeckillMetrics;
+import com.hmdp.utils.SeckillStockReconciler;
+import org.springframework.web.bind.annotation.*;
+
+import javax.annotation.Resource;
+
+/**
+ * <p>
+ *  秒杀下单运维接口，只允许 hmdp.admin.user-ids 中的用户访问
+ * </p>
+ */
+@RestController
+@RequestMapping("/admin/voucher-order")
+public class AdminVoucherOrderController {
+
+    @Resource
+    private IVoucherOrderService voucherOrderService;
+
+    @Resource
+    private SeckillMetrics seckillMetrics;
+
+    @Resource
+    private SeckillStockReconciler seckillStockReconciler;
+
+    /**
+     * 查询秒杀下单链路的运行指标
+     * @return 批量落库次数、批次大小分布等
+     */
+    @GetMapping("metrics")
+    public Result metrics() {
+        return Result.ok(seckillMetrics.snapshot());
+    }
+
+    /**
+     * 修复秒杀券在Redis和数据库之间的库存漂移
+     * @param voucherId 秒杀券id
+     * @param source db：以数据库为准修复Redis；redis：以Redis为准补齐数据库订单
+     * @return 修复前后的库存和订单数
+     */
+    @PostMapping("reconcile/{id}")
+    public Result reconcile(@PathVariable("id") Long voucherId, @RequestParam("source") String source) {
+        try {
+            return Result.ok(seckillStockReconciler.repair(voucherId, source));
+        } catch (IllegalArgumentException | IllegalStateException e) {
+            // 参数错误、秒杀进行中或者还有订单未落库，不修复
+            return Result.fail(e.getMessage());
+        }
+    }
+
+    /**
+     * 查看死信队列中多次重试仍无法落库的订单
+     * @param count 最多返回的条数
+     * @return 死信订单列表和死信总数
+     */
+    @GetMapping("dead-letters")
+    public Result queryDeadLetters(@RequestParam(value = "count", defaultValue = "100") Integer count) {
+        return voucherOrderService.queryDeadLetters(count);
+    }
+
+    /**
+     * 重放死信队列中的订单，处理完成的从死信队列删除
+     * @param count 最多重放的条数
+     * @return 处理完成的条数
+     */
+    @PostMapping("dead-letters/replay")
+    public Result replayDeadLetters(@RequestParam(value = "count", defaultValue = "100") Integer count) {
+        return voucherOrderService.replayDeadLetters(count);
+    }
+}
@@ -3,10 +3,8 @@ package com.hmdp.controller;
 
 import com.hmdp.dto.Result;
 import com.hmdp.service.IVoucherOrderService;
-import org.springframework.web.bind.annotation.PathVariable;
-import org.springframework.web.bind.annotation.PostMapping;
-import org.springframework.web.bind.annotation.RequestMapping;
-import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.bind.annotation.*;
+import org.springframework.web.context.request.async.DeferredResult;
 
 import javax.annotation.Resource;
 
@@ -30,4 +28,14 @@ public class VoucherOrderController {
 
         return voucherOrderService.seckillVoucher(voucherId);
     }
+
+    /**
+     * 等待异步下单结果，结果到达前请求挂起不占用线程
+     * @param orderId 秒杀返回的订单id
+     * @return 订单状态：SUCCESS、FAILED，超时仍未处理完返回PROCESSING
+     */
+    @GetMapping("result/{orderId}")
+    public DeferredResult<Result> queryOrderResult(@PathVariable("orderId") Long orderId) {
+        return voucherOrderService.queryOrderResult(orderId);
+    }
 }
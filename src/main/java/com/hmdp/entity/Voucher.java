@@ -78,6 +78,12 @@ public class Voucher implements Serializable {
     @TableField(exist = false)
     private Integer stock;
 
+    /**
+     * 秒杀库存在Redis中的分片数，为空或1时不分片
+     */
+    @TableField(exist = false)
+    private Integer stockShards;
+
     /**
      * 生效时间
      */
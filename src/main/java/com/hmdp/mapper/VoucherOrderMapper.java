@@ -2,6 +2,9 @@ package com.hmdp.mapper;
 
 import com.hmdp.entity.VoucherOrder;
 import com.baomidou.mybatisplus.core.mapper.BaseMapper;
+import org.apache.ibatis.annotations.Param;
+
+import java.util.List;
 
 /**
  * <p>
@@ -13,4 +16,12 @@ import com.baomidou.mybatisplus.core.mapper.BaseMapper;
  */
 public interface VoucherOrderMapper extends BaseMapper<VoucherOrder> {
 
+    /**
+     * 多行插入订单：INSERT ... VALUES (...), (...) ON DUPLICATE KEY UPDATE id = id
+     * 只吸收唯一键冲突：违反一人一单唯一索引 uk_voucher_user 的订单、重复投递的同一订单不插入，
+     * 其余错误（截断、非空等）照常抛出；已取消订单的live列为NULL，不占用唯一索引，用户可以重新下单。
+     * 冲突行在MySQL驱动默认配置下也计入返回值，实际插入了哪些订单要按id查询
+     * @param orders 订单列表，不能为空
+     */
+    void insertBatch(@Param("orders") List<VoucherOrder> orders);
 }
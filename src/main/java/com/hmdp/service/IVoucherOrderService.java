@@ -3,6 +3,9 @@ package com.hmdp.service;
 import com.hmdp.dto.Result;
 import com.hmdp.entity.VoucherOrder;
 import com.baomidou.mybatisplus.extension.service.IService;
+import org.springframework.web.context.request.async.DeferredResult;
+
+import java.util.List;
 
 /**
  * <p>
@@ -16,5 +19,17 @@ public interface IVoucherOrderService extends IService<VoucherOrder> {
 
     Result seckillVoucher(Long voucherId);
 
-    void createVoucherOrder(VoucherOrder voucherOrder);
+    boolean createVoucherOrder(VoucherOrder voucherOrder);
+
+    List<VoucherOrder> createVoucherOrders(List<VoucherOrder> voucherOrders);
+
+    boolean cancelUnpaidOrder(VoucherOrder voucherOrder);
+
+    int repairOrders(Long voucherId, long stock, List<VoucherOrder> missing, int pageSize);
+
+    DeferredResult<Result> queryOrderResult(Long orderId);
+
+    Result queryDeadLetters(int count);
+
+    Result replayDeadLetters(int count);
 }
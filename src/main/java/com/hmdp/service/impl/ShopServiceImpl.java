@@ -1,14 +1,14 @@
 package com.hmdp.service.impl;
 
-import cn.hutool.core.util.BooleanUtil;
-import cn.hutool.core.util.StrUtil;
-import cn.hutool.json.JSONUtil;
+import cn.hutool.core.bean.BeanUtil;
 import com.baomidou.mybatisplus.extension.plugins.pagination.Page;
 import com.hmdp.dto.Result;
 import com.hmdp.entity.Shop;
 import com.hmdp.mapper.ShopMapper;
 import com.hmdp.service.IShopService;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
+import com.hmdp.utils.CacheClient;
+import com.hmdp.utils.IdBloomFilter;
 import com.hmdp.utils.SystemConstants;
 import org.springframework.data.geo.Distance;
 import org.springframework.data.geo.GeoResult;
@@ -19,10 +19,12 @@ import org.springframework.data.redis.domain.geo.GeoReference;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
 
+import javax.annotation.PostConstruct;
 import javax.annotation.Resource;
 
 import java.util.*;
 import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
 
 import static com.hmdp.utils.RedisConstants.*;
 
@@ -40,27 +42,45 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
     @Resource
     private StringRedisTemplate stringRedisTemplate;
 
+    @Resource
+    private CacheClient cacheClient;
+
+    @Resource
+    private IdBloomFilter idBloomFilter;
+
+    // 启动时用已存在的店铺id构建布隆过滤器，拦截不存在的店铺id
+    @PostConstruct
+    private void initBloomFilter() {
+        idBloomFilter.build(BLOOM_SHOP, CACHE_SHOP_KEY, (lastId, size) -> query()
+                .select("id")
+                .gt("id", lastId)
+                .orderByAsc("id")
+                .last("LIMIT " + size)
+                .list()
+                .stream()
+                .map(Shop::getId)
+                .collect(Collectors.toList()));
+    }
+
     @Override
-    public Result queryById(Long id) {
-        String key = CACHE_SHOP_KEY + id;
-        // 1.从Redis查询店铺缓存
-        String shopJson = stringRedisTemplate.opsForValue().get(key);
-        // 2.判断是否存在
-        if (StrUtil.isNotBlank(shopJson)) {
-            // 3.存在直接返回
-            Shop shop = JSONUtil.toBean(shopJson, Shop.class);
-            return Result.ok(shop);
+    public boolean save(Shop shop) {
+        boolean saved = super.save(shop);
+        // 新店铺写入布隆过滤器，并删除布隆过滤器误判时缓存的空值
+        if (saved) {
+            idBloomFilter.add(BLOOM_SHOP, shop.getId());
+            cacheClient.invalidate(CACHE_SHOP_KEY + shop.getId());
         }
-        // 4.不存在，根据id查询数据库
-        Shop shop = getById(id);
-        // 5.不存在，返回错误
+        return saved;
+    }
+
+    @Override
+    public Result queryById(Long id) {
+        // 1.查询缓存（本地缓存 -> Redis -> 数据库），不存在的店铺会缓存空值，防止缓存穿透
+        Shop shop = cacheClient.queryWithPassThrough(CACHE_SHOP_KEY, id, Shop.class, this::getById, CACHE_SHOP_TTL, TimeUnit.MINUTES);
+        // 2.不存在，返回错误
         if (shop == null) {
             return Result.fail("店铺不存在!");
         }
-        // 6.存在，写入Redis
-        stringRedisTemplate.opsForValue().set(key,JSONUtil.toJsonStr(shop),CACHE_SHOP_TTL, TimeUnit.MINUTES);
-        // 7.返回
-
         // 以下为解决缓存击穿的改进代码
         /*
         Shop shop = queryWithMutex(id);
@@ -68,65 +88,14 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
             return Result.fail("店铺不存在");
         }
         */
+        // 3.返回
         return Result.ok(shop);
     }
 
     private Shop queryWithMutex(Long id) {
         // 该方法使用互斥锁处理缓存击穿问题（区别缓存穿透）
-        String key = CACHE_SHOP_KEY + id;
-        // 1.从Redis查询店铺缓存
-        String shopJson = stringRedisTemplate.opsForValue().get(key);
-        // 2.判断是否存在
-        if (StrUtil.isNotBlank(shopJson)) {
-            // 3.存在直接返回
-            Shop shop = JSONUtil.toBean(shopJson, Shop.class);
-            return shop;
-        }
-        // 判断命中的是否为空值
-        if (shopJson != null){
-            // 返回一个错误信息
-            return null;
-        }
-        // 4.不存在，实现缓存重建
-        // 4.1 获取互斥锁
-        String lockKey = "lock:shop:" + id;
-        Shop shop = null;
-        try {
-            boolean isLock = tryLock(lockKey);
-            // 4.2 判断是否获取成功
-            if (!isLock) {
-                // 4.3 失败，则休眠重试
-                Thread.sleep(50);
-                return queryWithMutex(id);
-            }
-            // 4.4 成功，更根据id查询数据库
-            shop = getById(id);
-            // 5.不存在，返回错误
-            if (shop == null) {
-                // 将空值写入Redis
-                stringRedisTemplate.opsForValue().set(key,"",CACHE_SHOP_TTL, TimeUnit.MINUTES);
-                // 返回错误信息
-                return null;
-            }
-            // 6.存在，写入Redis
-            stringRedisTemplate.opsForValue().set(key,JSONUtil.toJsonStr(shop),CACHE_SHOP_TTL, TimeUnit.MINUTES);
-        } catch (InterruptedException e) {
-            throw new RuntimeException(e);
-        }finally {
-            // 7.释放互斥锁
-            unLock(lockKey);
-        }
-        // 8.返回
-        return shop;
-    }
-
-    private boolean tryLock(String key){
-        Boolean flag = stringRedisTemplate.opsForValue().setIfAbsent(key, "1", 10, TimeUnit.SECONDS);
-        return BooleanUtil.isTrue(flag);
-    }
-
-    private void unLock(String key){
-        stringRedisTemplate.delete(key);
+        // 同一JVM内并发未命中的请求共用一次重建，只有发起重建的线程抢Redis互斥锁，其他线程等待结果，不休眠重试
+        return cacheClient.queryWithMutex(CACHE_SHOP_KEY, id, Shop.class, this::getById, CACHE_SHOP_TTL, TimeUnit.MINUTES);
     }
 
     @Override
@@ -138,8 +107,8 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
         }
         // 1.更新数据库
         updateById(shop);
-        // 2.删除缓存
-        stringRedisTemplate.delete(CACHE_SHOP_KEY + id);
+        // 2.删除缓存，并通知各节点删除本地缓存
+        cacheClient.invalidate(CACHE_SHOP_KEY + id);
         return Result.ok();
     }
 
@@ -187,11 +156,20 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
             Distance distance = result.getDistance();
             distanceMap.put(shopIdStr, distance);
         });
-        // 5.根据id查询shop
-        String idStr = StrUtil.join(",", ids);
-        List<Shop> shops = query().in("id", ids).last("ORDER BY FIELD(id," + idStr + ")").list();
-        for (Shop shop: shops){
-            shop.setDistance(distanceMap.get(shop.getId().toString()).getValue());
+        // 5.根据id批量查询shop，走缓存，未命中的一次查询数据库，结果与ids顺序一致
+        List<Shop> cached = cacheClient.queryBatchWithPassThrough(CACHE_SHOP_KEY, ids, Shop.class,
+                missIds -> listByIds(missIds).stream().collect(Collectors.toMap(Shop::getId, shop -> shop)),
+                CACHE_SHOP_TTL, TimeUnit.MINUTES);
+        List<Shop> shops = new ArrayList<>(cached.size());
+        for (Shop shop: cached){
+            // 已删除的店铺
+            if (shop == null) {
+                continue;
+            }
+            // 缓存中的对象是共享的，复制后再设置距离
+            Shop copy = BeanUtil.copyProperties(shop, Shop.class);
+            copy.setDistance(distanceMap.get(shop.getId().toString()).getValue());
+            shops.add(copy);
         }
         return Result.ok(shops);
     }
@@ -1,32 +1,53 @@
 package com.hmdp.service.impl;
 
+import cn.hutool.core.bean.BeanUtil;
 import com.hmdp.dto.Result;
 import com.hmdp.entity.SeckillVoucher;
 import com.hmdp.entity.VoucherOrder;
 import com.hmdp.mapper.VoucherOrderMapper;
 import com.hmdp.service.ISeckillVoucherService;
 import com.hmdp.service.IVoucherOrderService;
+import com.baomidou.mybatisplus.core.conditions.query.QueryWrapper;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
 import com.hmdp.utils.RedisIdWorker;
+import com.hmdp.utils.SeckillAdmission;
+import com.hmdp.utils.SeckillBatcher;
+import com.hmdp.utils.SeckillKeys;
+import com.hmdp.utils.SeckillMetrics;
+import com.hmdp.utils.SeckillOrderJournal;
+import com.hmdp.utils.SeckillOrderResultNotifier;
+import com.hmdp.utils.SeckillSoldOutMarker;
+import com.hmdp.utils.SeckillVoucherPreloader;
 import com.hmdp.utils.UserHolder;
 import lombok.extern.slf4j.Slf4j;
 import org.redisson.api.RLock;
 import org.redisson.api.RedissonClient;
-import org.springframework.aop.framework.AopContext;
-import org.springframework.core.io.ClassPathResource;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Lazy;
+import org.springframework.data.domain.Range;
+import org.springframework.dao.NonTransientDataAccessException;
+import org.springframework.data.redis.connection.RedisStreamCommands;
+import org.springframework.data.redis.connection.RedisZSetCommands;
+import org.springframework.data.redis.connection.stream.*;
+import org.springframework.data.redis.core.RedisCallback;
 import org.springframework.data.redis.core.StringRedisTemplate;
-import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.interceptor.TransactionAspectSupport;
+import org.springframework.web.context.request.async.DeferredResult;
 
 import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 import javax.annotation.Resource;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
 import java.time.LocalDateTime;
-import java.util.Collections;
-import java.util.concurrent.ArrayBlockingQueue;
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.stream.Collectors;
+
+import static com.hmdp.utils.RedisConstants.*;
 
 /**
  * <p>
@@ -47,106 +68,626 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
     private RedisIdWorker redisIdWorker;
 
     @Resource
-    private RedissonClient redissonClient;
+    private StringRedisTemplate stringRedisTemplate;
 
     @Resource
-    private StringRedisTemplate stringRedisTemplate;
+    private SeckillMetrics seckillMetrics;
 
-    private static final DefaultRedisScript<Long> SECKILL_SCRIPT;
-    static {
-        SECKILL_SCRIPT = new DefaultRedisScript<>();
-        SECKILL_SCRIPT.setLocation(new ClassPathResource("seckill.lua"));
-        SECKILL_SCRIPT.setResultType(Long.class);
-    }
+    @Resource
+    private SeckillSoldOutMarker seckillSoldOutMarker;
+
+    @Resource
+    private SeckillVoucherPreloader seckillVoucherPreloader;
+
+    @Resource
+    private SeckillOrderResultNotifier seckillOrderResultNotifier;
+
+    @Resource
+    private SeckillAdmission seckillAdmission;
+
+    @Resource
+    private SeckillBatcher seckillBatcher;
+
+    @Resource
+    private SeckillOrderJournal seckillOrderJournal;
+
+    @Resource
+    private RedissonClient redissonClient;
+
+    // 消费者名称：每个节点一个，宕机后遗留的pending消息由其他节点认领
+    private static final String CONSUMER_NAME = "c-" + ManagementFactory.getRuntimeMXBean().getName();
+
+    // 下单通道数，同一用户的订单总在同一通道内按顺序处理
+    @Value("${hmdp.seckill.order-lanes:4}")
+    private int orderLanes;
+    // 每个通道的队列容量，队列满时消费线程阻塞，不再从消息队列读取
+    @Value("${hmdp.seckill.order-lane-capacity:4096}")
+    private int orderLaneCapacity;
+    // 每批最多落库的订单数
+    @Value("${hmdp.seckill.order-batch-size:100}")
+    private int orderBatchSize;
+    // 凑批的最长等待时间（毫秒）
+    @Value("${hmdp.seckill.order-batch-wait:50}")
+    private long orderBatchWait;
+
+    // 所有分区消息队列都为空时，下一轮读取前的等待时间（毫秒）
+    @Value("${hmdp.seckill.stream-idle-wait:50}")
+    private long streamIdleWait;
+
+    // 查询下单结果时最长挂起时间（毫秒）
+    @Value("${hmdp.seckill.order-result-timeout:10000}")
+    private long orderResultTimeout;
+
+    // 落库失败后的最大尝试次数，超过后转入死信队列
+    @Value("${hmdp.seckill.retry.max-attempts:5}")
+    private int retryMaxAttempts;
+    // 重试退避的基础间隔和上限（毫秒），每次翻倍并加随机抖动
+    @Value("${hmdp.seckill.retry.base-delay:200}")
+    private long retryBaseDelay;
+    @Value("${hmdp.seckill.retry.max-delay:10000}")
+    private long retryMaxDelay;
+    // 等待重试的订单数上限，重试队列满时下单通道阻塞，不再继续读取新订单
+    @Value("${hmdp.seckill.retry.capacity:10000}")
+    private int retryCapacity;
+
+    // 线程池：1个消费线程 + N个下单通道 + 1个重试线程
+    private ExecutorService seckillOrderExecutor;
+    private OrderLane[] lanes;
+    private final DelayQueue<RetryTask> retryQueue = new DelayQueue<>();
+    private Semaphore retrySlots;
 
-    // 阻塞队列
-    private BlockingQueue<VoucherOrder> orderTasks = new ArrayBlockingQueue<>(128 * 128);
-    // 线程池
-    private static final ExecutorService SECKILL_ORDER_EXECUTOR = Executors.newSingleThreadExecutor();
-    // 任务
+    private volatile boolean running = true;
+
+    // 任务：从消息队列读取订单，按用户分发到下单通道
     private class VoucherOrderHandler implements Runnable{
 
         @Override
         public void run() {
-            while (true){
+            // 0.启动时先分发各分区pending-list中上次未确认的消息
+            for (int p = 0; p < SECKILL_PARTITIONS; p++) {
+                dispatchPendingList(SeckillKeys.streamKey(p));
+            }
+            while (running){
                 try {
-                    // 1.获取队列中的订单信息
-                    VoucherOrder voucherOrder = orderTasks.take();
-                    // 2.创建订单
-                    handleVoucherOrder(voucherOrder);
+                    // 1.依次读取各分区消息队列，集群中各分区可能在不同节点，不能一次读取多个队列
+                    int read = 0;
+                    for (int p = 0; p < SECKILL_PARTITIONS; p++) {
+                        // XREADGROUP GROUP g1 c1 COUNT n STREAMS stream.orders:{p} >
+                        List<MapRecord<String, Object, Object>> list = stringRedisTemplate.opsForStream().read(
+                                Consumer.from(SECKILL_STREAM_GROUP, CONSUMER_NAME),
+                                StreamReadOptions.empty().count(orderBatchSize),
+                                StreamOffset.create(SeckillKeys.streamKey(p), ReadOffset.lastConsumed())
+                        );
+                        // 2.判断消息获取是否成功
+                        if (list == null || list.isEmpty()) {
+                            continue;
+                        }
+                        // 3.分发到下单通道，通道DB提交后再ACK
+                        dispatch(list);
+                        read += list.size();
+                    }
+                    // 4.所有分区都没有消息，稍等再读
+                    if (read == 0) {
+                        Thread.sleep(streamIdleWait);
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
                 } catch (Exception e) {
+                    if (!running) {
+                        // 应用关闭时Redis连接先于消费线程释放，阻塞读取会被取消
+                        return;
+                    }
                     log.error("处理订单异常", e);
                 }
             }
         }
+
+        private void dispatchPendingList(String streamKey) {
+            // pending-list中的消息已分发的不会消失，只遍历一遍，从上一批最后一条之后继续读
+            String offset = "0";
+            while (running) {
+                try {
+                    // 1.获取pending-list中的订单信息 XREADGROUP GROUP g1 c1 COUNT n STREAMS stream.orders:{p} offset
+                    List<MapRecord<String, Object, Object>> list = stringRedisTemplate.opsForStream().read(
+                            Consumer.from(SECKILL_STREAM_GROUP, CONSUMER_NAME),
+                            StreamReadOptions.empty().count(orderBatchSize),
+                            StreamOffset.create(streamKey, ReadOffset.from(offset))
+                    );
+                    // 2.判断消息获取是否成功
+                    if (list == null || list.isEmpty()) {
+                        // 2.1.pending-list已经遍历完，结束循环
+                        return;
+                    }
+                    // 3.分发到下单通道
+                    dispatch(list);
+                    offset = list.get(list.size() - 1).getId().getValue();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                } catch (Exception e) {
+                    log.error("处理pending-list订单异常", e);
+                    return;
+                }
+            }
+        }
+
+        private void dispatch(List<MapRecord<String, Object, Object>> list) throws InterruptedException {
+            for (MapRecord<String, Object, Object> record : list) {
+                // 解析消息中的订单信息，按用户id选择通道
+                VoucherOrder voucherOrder = BeanUtil.fillBeanWithMap(record.getValue(), new VoucherOrder(), true);
+                lanes[laneOf(voucherOrder.getUserId())].queue.put(new OrderTask(voucherOrder, record.getStream(), record.getId()));
+            }
+        }
     }
 
-    private void handleVoucherOrder(VoucherOrder voucherOrder) {
-        // 获取用户
-        Long userId = voucherOrder.getUserId();
-        // 创建锁对象
-        RLock lock = redissonClient.getLock("lock:order:" + userId);
-        // 获取锁: 默认超时失败返回，等待时间30秒
-        boolean isLock = lock.tryLock();
-        // 判断是否获取锁成功
-        if(!isLock){
-            // 获取锁失败，返回错误或重试
-            log.error("不允许重复下单");
+    private int laneOf(Long userId) {
+        return (int) Math.floorMod(userId, (long) lanes.length);
+    }
+
+    private static class OrderTask {
+        private final VoucherOrder order;
+        private final String streamKey;
+        private final RecordId recordId;
+        // 已经失败的次数
+        private int attempts;
+
+        OrderTask(VoucherOrder order, String streamKey, RecordId recordId) {
+            this.order = order;
+            this.streamKey = streamKey;
+            this.recordId = recordId;
+        }
+    }
+
+    // 下单通道：单线程顺序处理分到本通道的用户，同一用户不会并发下单，不需要分布式锁
+    private class OrderLane implements Runnable {
+
+        private final BlockingQueue<OrderTask> queue = new LinkedBlockingQueue<>(orderLaneCapacity);
+
+        @Override
+        public void run() {
+            List<OrderTask> batch = new ArrayList<>(orderBatchSize);
+            while (running || !queue.isEmpty()) {
+                try {
+                    // 1.凑满一批或等待超时
+                    OrderTask first = queue.poll(1, TimeUnit.SECONDS);
+                    if (first == null) {
+                        continue;
+                    }
+                    batch.add(first);
+                    long deadline = System.currentTimeMillis() + orderBatchWait;
+                    while (batch.size() < orderBatchSize) {
+                        OrderTask next = queue.poll(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+                        if (next == null) {
+                            break;
+                        }
+                        batch.add(next);
+                        queue.drainTo(batch, orderBatchSize - batch.size());
+                    }
+                    // 2.整批创建订单
+                    handleBatch(batch);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                } catch (Exception e) {
+                    log.error("处理订单异常", e);
+                } finally {
+                    batch.clear();
+                }
+            }
+        }
+
+        private void handleBatch(List<OrderTask> batch) {
+            List<VoucherOrder> orders = batch.stream().map(t -> t.order).collect(Collectors.toList());
+            List<VoucherOrder> persisted;
+            try {
+                // 1.整批创建订单，一个事务提交
+                persisted = proxy.createVoucherOrders(orders);
+            } catch (Exception e) {
+                // 2.整批失败时退化为逐条处理，避免一条异常订单拖垮整批
+                log.error("批量创建订单失败，改为逐条处理", e);
+                for (OrderTask task : batch) {
+                    try {
+                        handleOne(task);
+                    } catch (InterruptedException ex) {
+                        Thread.currentThread().interrupt();
+                        return;
+                    }
+                }
+                return;
+            }
+            // 3.按分区ACK确认 XACK stream.orders:{p} g1 id ...
+            Map<String, List<OrderTask>> tasksOfStream = batch.stream().collect(Collectors.groupingBy(t -> t.streamKey));
+            for (Map.Entry<String, List<OrderTask>> entry : tasksOfStream.entrySet()) {
+                RecordId[] ids = entry.getValue().stream().map(t -> t.recordId).toArray(RecordId[]::new);
+                stringRedisTemplate.opsForStream().acknowledge(entry.getKey(), SECKILL_STREAM_GROUP, ids);
+            }
+            // 4.标记本地订单日志完成，通知等待下单结果的请求
+            Set<Long> persistedIds = persisted.stream().map(VoucherOrder::getId).collect(Collectors.toSet());
+            seckillOrderJournal.checkpoint(orders.stream().map(VoucherOrder::getId).collect(Collectors.toList()));
+            for (VoucherOrder order : orders) {
+                notifyResult(order, persistedIds.contains(order.getId()));
+            }
+        }
+    }
+
+    // 下单通道逐条创建订单，失败时进入重试队列
+    private void handleOne(OrderTask task) throws InterruptedException {
+        Exception e = tryCreate(task);
+        if (e == null) {
             return;
         }
+        task.attempts++;
+        // 1.数据错误等不可恢复的异常，或者重试次数用完，转入死信队列
+        if (isFatal(task, e)) {
+            deadLetter(task, e);
+            return;
+        }
+        // 2.重试队列已满时阻塞，MySQL变慢只会让下单变慢，不会丢单。
+        // 名额只由重试线程在订单处理完时释放，重试线程自己不会在这里等待，因此不会死锁
+        retrySlots.acquire();
+        scheduleRetry(task);
+    }
+
+    // 创建订单，成功或确定失败（重复下单、库存不足）时ACK并通知结果，异常时返回异常
+    private Exception tryCreate(OrderTask task) {
         try {
-            proxy.createVoucherOrder(voucherOrder);
-        }finally {
-            // 释放锁
-            lock.unlock();
+            notifyResult(task.order, proxy.createVoucherOrder(task.order));
+            stringRedisTemplate.opsForStream().acknowledge(task.streamKey, SECKILL_STREAM_GROUP, task.recordId);
+            seckillOrderJournal.checkpoint(task.order.getId());
+            return null;
+        } catch (Exception e) {
+            log.error("创建订单失败，orderId={}，第{}次", task.order.getId(), task.attempts + 1, e);
+            return e;
+        }
+    }
+
+    private boolean isFatal(OrderTask task, Exception e) {
+        return e instanceof NonTransientDataAccessException || task.attempts >= retryMaxAttempts;
+    }
+
+    // 放入重试队列，调用方已经持有重试名额
+    private void scheduleRetry(OrderTask task) {
+        // 指数退避 + 随机抖动，避免大量订单在同一时刻重试
+        long delay = Math.min(retryMaxDelay, retryBaseDelay << Math.min(task.attempts - 1, 20));
+        delay = delay / 2 + ThreadLocalRandom.current().nextLong(delay / 2 + 1);
+        retryQueue.put(new RetryTask(task, System.currentTimeMillis() + delay));
+        seckillMetrics.increment("orderRetries");
+    }
+
+    private void deadLetter(OrderTask task, Exception e) {
+        try {
+            // 1.写入死信队列 XADD stream.orders.dlq * id .. userId .. voucherId .. attempts .. error ..
+            Map<String, String> fields = new HashMap<>(8);
+            fields.put("id", task.order.getId().toString());
+            fields.put("userId", task.order.getUserId().toString());
+            fields.put("voucherId", task.order.getVoucherId().toString());
+            fields.put("attempts", String.valueOf(task.attempts));
+            fields.put("error", String.valueOf(e));
+            stringRedisTemplate.opsForStream().add(SECKILL_DEAD_LETTER_KEY, fields);
+            // 2.原消息确认，订单由死信队列保存
+            stringRedisTemplate.opsForStream().acknowledge(task.streamKey, SECKILL_STREAM_GROUP, task.recordId);
+            seckillOrderJournal.checkpoint(task.order.getId());
+            seckillMetrics.increment("orderDeadLetters");
+            log.error("订单转入死信队列，orderId={}", task.order.getId());
+        } catch (Exception ex) {
+            // 不ACK，留在pending-list中，下次启动时重新处理
+            log.error("写入死信队列失败，orderId={}", task.order.getId(), ex);
+        }
+    }
+
+    private static class RetryTask implements Delayed {
+        private final OrderTask task;
+        private final long dueAt;
+
+        RetryTask(OrderTask task, long dueAt) {
+            this.task = task;
+            this.dueAt = dueAt;
+        }
+
+        @Override
+        public long getDelay(TimeUnit unit) {
+            return unit.convert(dueAt - System.currentTimeMillis(), TimeUnit.MILLISECONDS);
+        }
+
+        @Override
+        public int compareTo(Delayed o) {
+            return Long.compare(dueAt, ((RetryTask) o).dueAt);
+        }
+    }
+
+    // 重试线程：到期的订单逐条重新落库，再次失败时保留名额放回重试队列，处理完（成功或转入死信）才释放名额
+    private class OrderRetrier implements Runnable {
+
+        @Override
+        public void run() {
+            // 应用关闭时未到期的订单仍在pending-list中，下次启动时重新处理
+            while (running) {
+                try {
+                    RetryTask retry = retryQueue.poll(1, TimeUnit.SECONDS);
+                    if (retry == null) {
+                        continue;
+                    }
+                    OrderTask task = retry.task;
+                    Exception e = tryCreate(task);
+                    if (e != null) {
+                        task.attempts++;
+                        if (!isFatal(task, e)) {
+                            scheduleRetry(task);
+                            continue;
+                        }
+                        deadLetter(task, e);
+                    }
+                    retrySlots.release();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                } catch (Exception e) {
+                    log.error("重试订单异常", e);
+                }
+            }
+        }
+    }
+
+    private void notifyResult(VoucherOrder order, boolean success) {
+        try {
+            if (success) {
+                seckillOrderResultNotifier.success(order.getId(), order.getUserId());
+            } else {
+                seckillOrderResultNotifier.fail(order.getId(), order.getUserId(), "下单失败");
+            }
+        } catch (Exception e) {
+            // 通知失败不影响订单，客户端等待超时后会重新查询
+            log.error("通知下单结果失败，orderId={}", order.getId(), e);
         }
     }
 
     // 在类初始化后就执行
     @PostConstruct
     private void init(){
-        SECKILL_ORDER_EXECUTOR.submit(new VoucherOrderHandler());
+        for (int p = 0; p < SECKILL_PARTITIONS; p++) {
+            String streamKey = SeckillKeys.streamKey(p);
+            // 1.创建各分区的消费者组（队列不存在时一并创建），已存在则忽略
+            createGroupIfAbsent(streamKey);
+            // 2.认领其他节点宕机后遗留在pending-list中的消息
+            claimIdlePending(streamKey);
+        }
+        // 3.重放本地订单日志中上次未完成的订单
+        seckillOrderJournal.replay(this::replayOrders);
+        // 4.启动下单通道和消费线程
+        lanes = new OrderLane[Math.max(1, orderLanes)];
+        retrySlots = new Semaphore(Math.max(1, retryCapacity));
+        seckillOrderExecutor = Executors.newFixedThreadPool(lanes.length + 2);
+        for (int i = 0; i < lanes.length; i++) {
+            lanes[i] = new OrderLane();
+            seckillOrderExecutor.submit(lanes[i]);
+        }
+        seckillOrderExecutor.submit(new OrderRetrier());
+        seckillOrderExecutor.submit(new VoucherOrderHandler());
+        // 5.暴露各通道队列深度和重试队列深度
+        seckillMetrics.gauge("orderLaneDepths", () -> Arrays.stream(lanes).mapToInt(l -> l.queue.size()).toArray());
+        seckillMetrics.gauge("orderRetryDepth", retryQueue::size);
     }
 
+    // 定时整理本地订单日志：其他节点落库、完成广播丢失的订单标记完成，长时间未落库的订单重新落库
+    @Scheduled(fixedDelayString = "${hmdp.seckill.journal.compact-interval:60000}",
+            initialDelayString = "${hmdp.seckill.journal.compact-interval:60000}")
+    public void compactJournal() {
+        seckillOrderJournal.compact(ids -> listObjs(new QueryWrapper<VoucherOrder>().select("id").in("id", ids),
+                o -> Long.valueOf(o.toString())), this::replayOrders);
+    }
+
+    private void replayOrders(List<VoucherOrder> orders) {
+        // 不经过消息队列落库，按优惠券持有订单锁，与库存修复互斥
+        Map<Long, List<VoucherOrder>> ordersOfVoucher = orders.stream()
+                .collect(Collectors.groupingBy(VoucherOrder::getVoucherId, LinkedHashMap::new, Collectors.toList()));
+        for (Map.Entry<Long, List<VoucherOrder>> entry : ordersOfVoucher.entrySet()) {
+            RLock lock = redissonClient.getLock(SECKILL_VOUCHER_LOCK_KEY + entry.getKey());
+            lock.lock();
+            try {
+                // 支付超时后已经归还了Redis库存的订单不再落库，否则库存算两次，持有锁时检查，与超时取消互斥
+                List<VoucherOrder> live = entry.getValue().stream()
+                        .filter(order -> !isOrphan(order.getId()))
+                        .collect(Collectors.toList());
+                if (!live.isEmpty()) {
+                    replayLocked(live);
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    private void replayLocked(List<VoucherOrder> orders) {
+        try {
+            // 落库是幂等的，已经由消息队列处理过的订单会被忽略
+            proxy.createVoucherOrders(orders);
+        } catch (Exception e) {
+            // 整批失败时逐条处理，库存不足等确定失败的订单直接丢弃
+            log.error("批量重放订单失败，改为逐条处理", e);
+            for (VoucherOrder order : orders) {
+                proxy.createVoucherOrder(order);
+            }
+        }
+    }
+
+    /**
+     * 订单是否已经支付超时并归还了Redis库存
+     */
+    private boolean isOrphan(Long orderId) {
+        return Boolean.TRUE.equals(stringRedisTemplate.hasKey(SECKILL_PAY_ORPHAN_KEY + orderId));
+    }
+
+    @PreDestroy
+    private void destroy() throws InterruptedException {
+        // 停止读取新消息，已分发的订单处理完再退出，未处理完的留在pending-list
+        running = false;
+        seckillOrderExecutor.shutdown();
+        seckillOrderExecutor.awaitTermination(5, TimeUnit.SECONDS);
+    }
+
+    private void createGroupIfAbsent(String streamKey) {
+        try {
+            stringRedisTemplate.execute((RedisCallback<String>) connection -> connection.streamCommands().xGroupCreate(
+                    streamKey.getBytes(StandardCharsets.UTF_8), SECKILL_STREAM_GROUP, ReadOffset.from("0"), true));
+        } catch (Exception e) {
+            // BUSYGROUP: 消费者组已存在
+            log.debug("消费者组已存在: {}", e.getMessage());
+        }
+    }
+
+    private void claimIdlePending(String streamKey) {
+        // 1.查询消费者组中所有未确认的消息
+        PendingMessages pending = stringRedisTemplate.opsForStream()
+                .pending(streamKey, SECKILL_STREAM_GROUP, Range.unbounded(), 1000);
+        if (pending == null || pending.isEmpty()) {
+            return;
+        }
+        // 2.筛选出其他消费者长时间未确认的消息
+        List<RecordId> ids = new ArrayList<>();
+        for (PendingMessage message : pending) {
+            if (!CONSUMER_NAME.equals(message.getConsumerName())
+                    && message.getElapsedTimeSinceLastDelivery().toMillis() >= SECKILL_STREAM_CLAIM_IDLE) {
+                ids.add(message.getId());
+            }
+        }
+        if (ids.isEmpty()) {
+            return;
+        }
+        // 3.XCLAIM 转移到当前消费者的pending-list，由消费线程启动时处理
+        List<RecordId> claimed = stringRedisTemplate.execute((RedisCallback<List<RecordId>>) connection ->
+                connection.streamCommands().xClaimJustId(streamKey.getBytes(StandardCharsets.UTF_8),
+                        SECKILL_STREAM_GROUP, CONSUMER_NAME,
+                        RedisStreamCommands.XClaimOptions.minIdleMs(SECKILL_STREAM_CLAIM_IDLE).ids(ids)));
+        log.info("认领遗留订单消息{}条", claimed == null ? 0 : claimed.size());
+    }
+
+    // 获取代理对象，保证createVoucherOrder的事务生效
+    @Lazy
+    @Resource
     private IVoucherOrderService proxy;
+
     @Override
     public Result seckillVoucher(Long voucherId) {
 
+        // 0.本地已标记售罄，直接返回，不再访问Redis
+        if (seckillSoldOutMarker.isSoldOut(voucherId)) {
+            return Result.fail("库存不足");
+        }
+        // 0.1.按本地元数据判断秒杀时间，最终以脚本中的校验为准
+        SeckillVoucherPreloader.SeckillMeta meta = seckillVoucherPreloader.getMeta(voucherId);
+        long now = System.currentTimeMillis();
+        if (now < meta.getBeginMillis()) {
+            return Result.fail("秒杀尚未开始！");
+        }
+        if (now > meta.getEndMillis()) {
+            return Result.fail("秒杀已经结束！");
+        }
+        // 0.2.准入控制：限流或订单积压时快速失败，此时尚未扣减库存
+        int admission = seckillAdmission.tryAdmit(voucherId);
+        if (admission != SeckillAdmission.ADMITTED) {
+            return Result.fail("系统繁忙，请稍后重试");
+        }
         // 获取用户
         Long userId = UserHolder.getUser().getId();
+        // 获取订单id
+        long orderId = redisIdWorker.nextId("order");
 
-        // 1.执行lua脚本
-        Long result = stringRedisTemplate.execute(
-                SECKILL_SCRIPT,
-                Collections.emptyList(),
-                voucherId.toString(),
-                userId.toString()
-        );
+        // 1.执行lua脚本，同一张券的并发请求合并执行，有购买资格时由脚本把订单发送到消息队列
+        int r = seckillBatcher.seckill(voucherId, userId, orderId);
 
         // 2.判断结果是为0
-        int r = result.intValue();
         if(r != 0){
-            // 2.1 不为0，代表没有购买资格
-            return Result.fail(r == 1 ? "库存不足" : "不能重复下单");
+            // 2.1 不为0，代表没有购买资格，库存不足时标记售罄
+            switch (r) {
+                case 1:
+                    seckillSoldOutMarker.markSoldOut(voucherId);
+                    return Result.fail("库存不足");
+                case 2:
+                    return Result.fail("不能重复下单");
+                case 3:
+                    return Result.fail("秒杀尚未开始！");
+                case 4:
+                    return Result.fail("秒杀已经结束！");
+                default:
+                    return Result.fail("系统繁忙，请稍后重试");
+            }
         }
 
-        // 2.2，为0，有购买资格，把下单信息保存到阻塞队列中
-        // 创建订单
-        long orderId = redisIdWorker.nextId("order");
+        // 3.返回前写入本地订单日志，Redis丢失消息时重启后据此补单
         VoucherOrder voucherOrder = new VoucherOrder();
         voucherOrder.setId(orderId);
         voucherOrder.setUserId(userId);
         voucherOrder.setVoucherId(voucherId);
-        // 放入阻塞队列
-        orderTasks.add(voucherOrder);
+        seckillOrderJournal.append(voucherOrder);
 
-        // 获取代理对象
-        proxy = (IVoucherOrderService) AopContext.currentProxy();
-        // 3.返回订单id
+        // 4.返回订单id
         return Result.ok(orderId);
     }
 
 
+    @Override
+    public Result queryDeadLetters(int count) {
+        // XRANGE stream.orders.dlq - + COUNT count
+        List<MapRecord<String, Object, Object>> records = stringRedisTemplate.opsForStream()
+                .range(SECKILL_DEAD_LETTER_KEY, Range.unbounded(), RedisZSetCommands.Limit.limit().count(count));
+        List<Map<Object, Object>> list = new ArrayList<>();
+        if (records != null) {
+            for (MapRecord<String, Object, Object> record : records) {
+                Map<Object, Object> fields = new LinkedHashMap<>(record.getValue());
+                fields.put("recordId", record.getId().getValue());
+                list.add(fields);
+            }
+        }
+        return Result.ok(list, stringRedisTemplate.opsForStream().size(SECKILL_DEAD_LETTER_KEY));
+    }
+
+    @Override
+    public Result replayDeadLetters(int count) {
+        List<MapRecord<String, Object, Object>> records = stringRedisTemplate.opsForStream()
+                .range(SECKILL_DEAD_LETTER_KEY, Range.unbounded(), RedisZSetCommands.Limit.limit().count(count));
+        int replayed = 0;
+        if (records == null) {
+            return Result.ok(replayed);
+        }
+        for (MapRecord<String, Object, Object> record : records) {
+            VoucherOrder voucherOrder = BeanUtil.fillBeanWithMap(record.getValue(), new VoucherOrder(), true);
+            // 不经过消息队列落库，持有订单锁，与库存修复互斥
+            RLock lock = redissonClient.getLock(SECKILL_VOUCHER_LOCK_KEY + voucherOrder.getVoucherId());
+            lock.lock();
+            try {
+                // 1.支付超时后已经归还了Redis库存，不再落库，否则库存算两次
+                if (isOrphan(voucherOrder.getId())) {
+                    log.warn("死信订单已超时归还库存，不再落库，orderId={}", voucherOrder.getId());
+                    notifyResult(voucherOrder, false);
+                    stringRedisTemplate.opsForStream().delete(SECKILL_DEAD_LETTER_KEY, record.getId());
+                    seckillMetrics.increment("orderDeadLetterOrphans");
+                    replayed++;
+                    continue;
+                }
+                // 1.1.重新落库，落库是幂等的，库存不足等确定的结果也算处理完成
+                notifyResult(voucherOrder, proxy.createVoucherOrder(voucherOrder));
+                // 2.从死信队列删除
+                stringRedisTemplate.opsForStream().delete(SECKILL_DEAD_LETTER_KEY, record.getId());
+                seckillMetrics.increment("orderDeadLetterReplays");
+                replayed++;
+            } catch (Exception e) {
+                // 仍然失败，保留在死信队列中
+                log.error("重放死信订单失败，orderId={}", voucherOrder.getId(), e);
+            } finally {
+                lock.unlock();
+            }
+        }
+        return Result.ok(replayed);
+    }
+
+    @Override
+    public DeferredResult<Result> queryOrderResult(Long orderId) {
+        // 挂起请求，订单落库或失败时由消费线程唤醒，超时返回处理中
+        Long userId = UserHolder.getUser().getId();
+        return seckillOrderResultNotifier.await(orderId, userId, orderResultTimeout);
+    }
+
     // 非异步秒杀的原始代码
 /*    @Override
     public Result seckillVoucher(Long voucherId) {
@@ -191,17 +732,81 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
 
     }*/
 
+    @Override
+    @Transactional
+    public List<VoucherOrder> createVoucherOrders(List<VoucherOrder> voucherOrders) {
+        // 1.按优惠券分组，每张券只扣一次库存
+        Map<Long, List<VoucherOrder>> ordersOfVoucher = voucherOrders.stream()
+                .collect(Collectors.groupingBy(VoucherOrder::getVoucherId, LinkedHashMap::new, Collectors.toList()));
+        List<VoucherOrder> persisted = new ArrayList<>(voucherOrders.size());
+        int inserted = 0;
+        for (Map.Entry<Long, List<VoucherOrder>> entry : ordersOfVoucher.entrySet()) {
+            Long voucherId = entry.getKey();
+            List<VoucherOrder> orders = entry.getValue();
+            // 2.重复投递的同一订单已经落库，不再插入和扣库存
+            Set<Long> existing = savedIds(orders);
+            List<VoucherOrder> fresh = orders.stream()
+                    .filter(o -> !existing.contains(o.getId()))
+                    .collect(Collectors.toList());
+            // 2.1.多行插入，一人一单由唯一索引保证，已下过单的不插入，已取消的订单不占用索引
+            Set<Long> saved = existing;
+            int n = 0;
+            if (!fresh.isEmpty()) {
+                getBaseMapper().insertBatch(fresh);
+                // 2.2.查询实际插入的订单，其余是重复下单
+                Set<Long> created = savedIds(fresh);
+                n = created.size();
+                saved = new HashSet<>(existing);
+                saved.addAll(created);
+            }
+            // 3.按实际插入数聚合扣减库存 stock = stock - n，乐观锁保证不超卖
+            if (n > 0) {
+                boolean success = seckillVoucherService.update().setSql("stock = stock - " + n)
+                        .eq("voucher_id", voucherId)
+                        .ge("stock", n)
+                        .update();
+                if (!success) {
+                    // 库存不足，回滚整批，由调用方逐条处理
+                    throw new IllegalStateException("库存不足！voucherId=" + voucherId + ", count=" + n);
+                }
+            }
+            inserted += n;
+            // 4.记录落库成功的订单
+            for (VoucherOrder order : orders) {
+                if (saved.contains(order.getId())) {
+                    persisted.add(order);
+                } else {
+                    log.error("用户已经购买过一次！userId={}, voucherId={}", order.getUserId(), voucherId);
+                }
+            }
+        }
+        if (inserted > 0) {
+            seckillMetrics.recordBatch(inserted);
+        }
+        return persisted;
+    }
+
+    /**
+     * 查询已在库中的订单id
+     */
+    private Set<Long> savedIds(List<VoucherOrder> orders) {
+        return listObjs(new QueryWrapper<VoucherOrder>().select("id")
+                        .in("id", orders.stream().map(VoucherOrder::getId).collect(Collectors.toList())),
+                o -> Long.valueOf(o.toString())).stream().collect(Collectors.toSet());
+    }
+
+    @Override
     @Transactional
-    public void createVoucherOrder(VoucherOrder voucherOrder) {
-        // 5. 一人一单
-        Long userId = voucherOrder.getUserId();
-
-        // 5.1. 查询订单
-        int count = query().eq("user_id", userId).eq("voucher_id", voucherOrder.getVoucherId()).count();
-        // 5.2. 判断是否存在
-        if (count > 0) {
+    public boolean createVoucherOrder(VoucherOrder voucherOrder) {
+        // 5. 重复投递的同一订单视为成功
+        if (getById(voucherOrder.getId()) != null) {
+            return true;
+        }
+        // 5.1.一人一单：插入订单，违反唯一索引时不插入，说明已经下过单
+        getBaseMapper().insertBatch(Collections.singletonList(voucherOrder));
+        if (getById(voucherOrder.getId()) == null) {
             log.error("用户已经购买过一次！");
-            return;
+            return false;
         }
 
         // 6.扣减库存
@@ -211,10 +816,60 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
                 .update();
         if (!success) {
             log.error("库存不足！");
-            return;
+            // 撤销刚插入的订单
+            TransactionAspectSupport.currentTransactionStatus().setRollbackOnly();
+            return false;
         }
+        seckillMetrics.recordBatch(1);
+        return true;
+    }
 
-        save(voucherOrder);
+    @Override
+    @Transactional
+    public boolean cancelUnpaidOrder(VoucherOrder voucherOrder) {
+        // 1.只取消未支付的订单，并让出一人一单的唯一索引
+        // update tb_voucher_order set status = 4, live = null where id = ? and status = 1
+        boolean success = update().set("status", 4).setSql("live = NULL")
+                .eq("id", voucherOrder.getId())
+                .eq("status", 1)
+                .update();
+        if (!success) {
+            return false;
+        }
+        // 2.归还库存
+        seckillVoucherService.update().setSql("stock = stock + 1")
+                .eq("voucher_id", voucherOrder.getVoucherId())
+                .update();
+        return true;
+    }
 
+    /**
+     * 以Redis为准修复数据库：补上缺失的订单，库存改为Redis中的库存，在同一个事务中完成，失败时整体回滚
+     * @param stock Redis中的库存
+     * @param missing Redis中有、数据库中没有的订单
+     * @param pageSize 每次插入的订单数
+     * @return 补上的订单数
+     */
+    @Override
+    @Transactional
+    public int repairOrders(Long voucherId, long stock, List<VoucherOrder> missing, int pageSize) {
+        // 1.先留出补单所需的库存，补单时再扣减
+        seckillVoucherService.update()
+                .set("stock", stock + missing.size())
+                .eq("voucher_id", voucherId)
+                .update();
+        // 2.分页补单
+        int created = 0;
+        for (int i = 0; i < missing.size(); i += pageSize) {
+            created += createVoucherOrders(missing.subList(i, Math.min(missing.size(), i + pageSize))).size();
+        }
+        // 3.有订单没补上（用户在修复期间已经落库）时，多留的库存也改回Redis中的库存
+        if (created < missing.size()) {
+            seckillVoucherService.update()
+                    .set("stock", stock)
+                    .eq("voucher_id", voucherId)
+                    .update();
+        }
+        return created;
     }
 }
@@ -7,14 +7,19 @@ import com.hmdp.mapper.VoucherMapper;
 import com.hmdp.entity.SeckillVoucher;
 import com.hmdp.service.ISeckillVoucherService;
 import com.hmdp.service.IVoucherService;
+import com.hmdp.utils.SeckillKeys;
+import com.hmdp.utils.SeckillSoldOutMarker;
+import com.hmdp.utils.SeckillVoucherPreloader;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
 
 import javax.annotation.Resource;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
-import static com.hmdp.utils.RedisConstants.SECKILL_STOCK_KEY;
+import static com.hmdp.utils.RedisConstants.*;
 
 /**
  * <p>
@@ -33,6 +38,12 @@ public class VoucherServiceImpl extends ServiceImpl<VoucherMapper, Voucher> impl
     @Resource
     private StringRedisTemplate stringRedisTemplate;
 
+    @Resource
+    private SeckillSoldOutMarker seckillSoldOutMarker;
+
+    @Resource
+    private SeckillVoucherPreloader seckillVoucherPreloader;
+
     @Override
     public Result queryVoucherOfShop(Long shopId) {
         // 查询优惠券信息
@@ -54,6 +65,30 @@ public class VoucherServiceImpl extends ServiceImpl<VoucherMapper, Voucher> impl
         seckillVoucher.setEndTime(voucher.getEndTime());
         seckillVoucherService.save(seckillVoucher);
         // 保存秒杀库存到Redis中
-        stringRedisTemplate.opsForValue().set(SECKILL_STOCK_KEY + voucher.getId(), voucher.getStock().toString());
+        int shards = saveSeckillStock(voucher.getId(), voucher.getStock(), voucher.getStockShards());
+        // 预热秒杀时间窗口等元数据
+        seckillVoucherPreloader.preload(seckillVoucher, shards);
+        // 库存写入后清除可能残留的售罄标记
+        seckillSoldOutMarker.clear(voucher.getId());
+    }
+
+    private int saveSeckillStock(Long voucherId, int stock, Integer stockShards) {
+        int shards = stockShards == null ? 1 : Math.min(Math.max(stockShards, 1), SECKILL_MAX_SHARDS);
+        // 1.不分片，所有请求访问同一个库存key
+        if (shards <= 1) {
+            stringRedisTemplate.opsForValue().set(SeckillKeys.stockKey(voucherId), String.valueOf(stock));
+            return 1;
+        }
+        // 2.分片，库存平均拆到 seckill:stock:{分区}:{id}:{0..k-1}，余数分给前面的分片
+        Map<String, String> shardStocks = new HashMap<>(shards);
+        for (int i = 0; i < shards; i++) {
+            int s = stock / shards + (i < stock % shards ? 1 : 0);
+            shardStocks.put(SeckillKeys.stockShardKey(voucherId, i), String.valueOf(s));
+        }
+        stringRedisTemplate.opsForValue().multiSet(shardStocks);
+        // 3.记录分片数，最后写入，保证脚本看到分片数时分片库存已经就绪
+        stringRedisTemplate.opsForValue().set(SeckillKeys.shardsKey(voucherId), String.valueOf(shards));
+        stringRedisTemplate.opsForSet().add(SeckillKeys.shardedKey(SeckillKeys.partition(voucherId)), voucherId.toString());
+        return shards;
     }
 }
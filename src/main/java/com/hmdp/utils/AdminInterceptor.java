@@ -0,0 +1,36 @@
+package com.hmdp.utils;
+
+import com.hmdp.dto.UserDTO;
+import org.springframework.web.servlet.HandlerInterceptor;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.util.Set;
+
+/**
+ * 运维接口拦截器：只有 hmdp.admin.user-ids 中的用户可以访问 /admin/**，未配置时全部拒绝
+ */
+public class AdminInterceptor implements HandlerInterceptor {
+
+    private final Set<Long> adminUserIds;
+
+    public AdminInterceptor(Set<Long> adminUserIds) {
+        this.adminUserIds = adminUserIds;
+    }
+
+    @Override
+    public boolean preHandle(HttpServletRequest request, HttpServletResponse response, Object handler) throws Exception {
+        // 1.未登录
+        UserDTO user = UserHolder.getUser();
+        if (user == null) {
+            response.setStatus(401);
+            return false;
+        }
+        // 2.不是管理员
+        if (!adminUserIds.contains(user.getId())) {
+            response.setStatus(403);
+            return false;
+        }
+        return true;
+    }
+}
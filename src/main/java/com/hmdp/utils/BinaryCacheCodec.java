@@ -0,0 +1,461 @@
+package com.hmdp.utils;
+
+import org.springframework.stereotype.Component;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 按实体字段编码的紧凑二进制格式，不写字段名，整数用变长编码，字符串直接写UTF-8字节。
+ * <p>
+ * 格式：版本(1) + 标志(1) + 结构指纹(4) + [逻辑过期时间毫秒(8) + 重建耗时毫秒(变长)] + 非空字段位图 + 各非空字段的值。
+ * 过期时间在固定位置，不需要解码数据就能读取；版本1没有重建耗时，仍然可以读取。
+ * 字段按名称排序，结构指纹由类名和字段名、字段类型计算，实体字段变化后旧数据的指纹对不上，按未命中处理。
+ * 只支持字段都是数字、布尔、字符串、LocalDateTime、LocalDate的实体，其他类型由CacheClient改用JSON
+ */
+@Component
+public class BinaryCacheCodec implements CacheCodec {
+
+    private static final byte VERSION = 0x02;
+    // 没有重建耗时的旧版本
+    private static final byte VERSION_NO_DELTA = 0x01;
+    private static final int FLAG_EXPIRE = 1;
+
+    private enum Kind { LONG, INT, SHORT, BYTE, DOUBLE, FLOAT, BOOLEAN, STRING, DATE_TIME, DATE }
+
+    private static class Property {
+        private final Field field;
+        private final Kind kind;
+
+        Property(Field field, Kind kind) {
+            this.field = field;
+            this.kind = kind;
+        }
+    }
+
+    private static class Schema {
+        // 不支持的类型为null
+        private final Constructor<?> constructor;
+        private final Property[] properties;
+        private final int fingerprint;
+
+        Schema(Constructor<?> constructor, Property[] properties, int fingerprint) {
+            this.constructor = constructor;
+            this.properties = properties;
+            this.fingerprint = fingerprint;
+        }
+    }
+
+    private static final Schema UNSUPPORTED = new Schema(null, null, 0);
+
+    private final Map<Class<?>, Schema> schemas = new ConcurrentHashMap<>();
+
+    @Override
+    public String name() {
+        return "binary";
+    }
+
+    @Override
+    public byte version() {
+        return VERSION;
+    }
+
+    @Override
+    public boolean reads(int version) {
+        return version == VERSION || version == VERSION_NO_DELTA;
+    }
+
+    @Override
+    public boolean supports(Class<?> type) {
+        return schemaOf(type) != UNSUPPORTED;
+    }
+
+    @Override
+    public byte[] encode(Object value) {
+        return encode(value, null, 0);
+    }
+
+    @Override
+    public <T> T decode(byte[] bytes, Class<T> type) {
+        Reader in = new Reader(bytes);
+        Schema schema = readHeader(in, type);
+        if (in.expireMillis != null) {
+            throw new IllegalArgumentException("缓存值带有逻辑过期时间，type=" + type.getName());
+        }
+        return type.cast(readFields(in, schema));
+    }
+
+    @Override
+    public byte[] encodeWithExpire(RedisData redisData) {
+        long expireMillis = redisData.getExpireTime().toInstant(ZoneOffset.UTC).toEpochMilli();
+        return encode(redisData.getData(), expireMillis, redisData.getDelta());
+    }
+
+    @Override
+    public RedisData decodeWithExpire(byte[] bytes, Class<?> type) {
+        Reader in = new Reader(bytes);
+        Schema schema = readHeader(in, type);
+        if (in.expireMillis == null) {
+            throw new IllegalArgumentException("缓存值没有逻辑过期时间，type=" + type.getName());
+        }
+        RedisData redisData = toRedisData(in);
+        redisData.setData(readFields(in, schema));
+        return redisData;
+    }
+
+    @Override
+    public RedisData peekExpire(byte[] bytes) {
+        // 跳过结构指纹，不需要知道实体类型
+        Reader in = new Reader(bytes);
+        int version = in.readByte();
+        if (!reads(version)) {
+            throw new IllegalArgumentException("缓存格式版本不匹配");
+        }
+        int flags = in.readByte();
+        in.skip(4);
+        if ((flags & FLAG_EXPIRE) == 0) {
+            throw new IllegalArgumentException("缓存值没有逻辑过期时间");
+        }
+        readExpire(in, version);
+        return toRedisData(in);
+    }
+
+    private static RedisData toRedisData(Reader in) {
+        RedisData redisData = new RedisData();
+        redisData.setExpireTime(LocalDateTime.ofEpochSecond(Math.floorDiv(in.expireMillis, 1000L),
+                (int) Math.floorMod(in.expireMillis, 1000L) * 1_000_000, ZoneOffset.UTC));
+        redisData.setDelta(in.delta);
+        return redisData;
+    }
+
+    private static void readExpire(Reader in, int version) {
+        in.expireMillis = in.readLong();
+        if (version != VERSION_NO_DELTA) {
+            in.delta = in.readVarLong();
+        }
+    }
+
+    private byte[] encode(Object value, Long expireMillis, long delta) {
+        Schema schema = schemaOf(value.getClass());
+        if (schema == UNSUPPORTED) {
+            throw new IllegalArgumentException("不支持二进制编码的类型: " + value.getClass().getName());
+        }
+        Writer out = new Writer();
+        // 1.头部
+        out.write(VERSION);
+        out.write(expireMillis == null ? 0 : FLAG_EXPIRE);
+        out.writeInt(schema.fingerprint);
+        if (expireMillis != null) {
+            out.writeLong(expireMillis);
+            out.writeVarLong(delta);
+        }
+        // 2.非空字段位图，编码字段时回填
+        Property[] properties = schema.properties;
+        int bitmap = out.reserve((properties.length + 7) >>> 3);
+        // 3.非空字段的值
+        try {
+            for (int i = 0; i < properties.length; i++) {
+                Object v = properties[i].field.get(value);
+                if (v == null) {
+                    continue;
+                }
+                out.buf[bitmap + (i >>> 3)] |= 1 << (i & 7);
+                writeValue(out, properties[i].kind, v);
+            }
+        } catch (IllegalAccessException e) {
+            throw new IllegalStateException(e);
+        }
+        return out.toByteArray();
+    }
+
+    private Schema readHeader(Reader in, Class<?> type) {
+        int version = in.readByte();
+        if (!reads(version)) {
+            throw new IllegalArgumentException("缓存格式版本不匹配");
+        }
+        int flags = in.readByte();
+        Schema schema = schemaOf(type);
+        if (schema == UNSUPPORTED || in.readInt() != schema.fingerprint) {
+            throw new IllegalArgumentException("缓存结构与实体不匹配，type=" + type.getName());
+        }
+        if ((flags & FLAG_EXPIRE) != 0) {
+            readExpire(in, version);
+        }
+        return schema;
+    }
+
+    private Object readFields(Reader in, Schema schema) {
+        Property[] properties = schema.properties;
+        int bitmap = in.skip((properties.length + 7) >>> 3);
+        try {
+            Object value = schema.constructor.newInstance();
+            for (int i = 0; i < properties.length; i++) {
+                if ((in.buf[bitmap + (i >>> 3)] & (1 << (i & 7))) == 0) {
+                    continue;
+                }
+                properties[i].field.set(value, readValue(in, properties[i].kind));
+            }
+            return value;
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static void writeValue(Writer out, Kind kind, Object v) {
+        switch (kind) {
+            case LONG:
+            case INT:
+            case SHORT:
+            case BYTE:
+                out.writeVarLong(((Number) v).longValue());
+                break;
+            case DOUBLE:
+                out.writeLong(Double.doubleToLongBits((Double) v));
+                break;
+            case FLOAT:
+                out.writeInt(Float.floatToIntBits((Float) v));
+                break;
+            case BOOLEAN:
+                out.write((Boolean) v ? 1 : 0);
+                break;
+            case STRING:
+                byte[] bytes = ((String) v).getBytes(StandardCharsets.UTF_8);
+                out.writeVarLong(bytes.length);
+                out.write(bytes);
+                break;
+            case DATE_TIME:
+                LocalDateTime time = (LocalDateTime) v;
+                out.writeVarLong(time.toEpochSecond(ZoneOffset.UTC));
+                out.writeVarLong(time.getNano());
+                break;
+            default:
+                out.writeVarLong(((LocalDate) v).toEpochDay());
+        }
+    }
+
+    private static Object readValue(Reader in, Kind kind) {
+        switch (kind) {
+            case LONG:
+                return in.readVarLong();
+            case INT:
+                return (int) in.readVarLong();
+            case SHORT:
+                return (short) in.readVarLong();
+            case BYTE:
+                return (byte) in.readVarLong();
+            case DOUBLE:
+                return Double.longBitsToDouble(in.readLong());
+            case FLOAT:
+                return Float.intBitsToFloat(in.readInt());
+            case BOOLEAN:
+                return in.readByte() != 0;
+            case STRING:
+                int length = (int) in.readVarLong();
+                String s = new String(in.buf, in.pos, length, StandardCharsets.UTF_8);
+                in.pos += length;
+                return s;
+            case DATE_TIME:
+                long second = in.readVarLong();
+                return LocalDateTime.ofEpochSecond(second, (int) in.readVarLong(), ZoneOffset.UTC);
+            default:
+                return LocalDate.ofEpochDay(in.readVarLong());
+        }
+    }
+
+    private Schema schemaOf(Class<?> type) {
+        return schemas.computeIfAbsent(type, BinaryCacheCodec::buildSchema);
+    }
+
+    private static Schema buildSchema(Class<?> type) {
+        // 1.只支持有无参构造函数的普通实体类
+        if (type.isPrimitive() || type.isArray() || type.isInterface() || type.isEnum()
+                || Modifier.isAbstract(type.getModifiers()) || type.getName().startsWith("java.")) {
+            return UNSUPPORTED;
+        }
+        Constructor<?> constructor;
+        try {
+            constructor = type.getDeclaredConstructor();
+            constructor.setAccessible(true);
+        } catch (NoSuchMethodException e) {
+            return UNSUPPORTED;
+        }
+        // 2.收集字段，包括父类的字段，按名称排序
+        List<Field> fields = new ArrayList<>();
+        for (Class<?> c = type; c != Object.class; c = c.getSuperclass()) {
+            for (Field field : c.getDeclaredFields()) {
+                int modifiers = field.getModifiers();
+                if (!Modifier.isStatic(modifiers) && !Modifier.isTransient(modifiers)) {
+                    fields.add(field);
+                }
+            }
+        }
+        fields.sort(Comparator.comparing(Field::getName));
+        // 3.每个字段都要是支持的类型
+        Property[] properties = new Property[fields.size()];
+        StringBuilder signature = new StringBuilder(type.getName());
+        for (int i = 0; i < properties.length; i++) {
+            Field field = fields.get(i);
+            Kind kind = kindOf(field.getType());
+            if (kind == null) {
+                return UNSUPPORTED;
+            }
+            field.setAccessible(true);
+            properties[i] = new Property(field, kind);
+            signature.append(';').append(field.getName()).append(':').append(field.getType().getName());
+        }
+        return new Schema(constructor, properties, signature.toString().hashCode());
+    }
+
+    private static Kind kindOf(Class<?> type) {
+        if (type == Long.class || type == long.class) {
+            return Kind.LONG;
+        }
+        if (type == Integer.class || type == int.class) {
+            return Kind.INT;
+        }
+        if (type == Short.class || type == short.class) {
+            return Kind.SHORT;
+        }
+        if (type == Byte.class || type == byte.class) {
+            return Kind.BYTE;
+        }
+        if (type == Double.class || type == double.class) {
+            return Kind.DOUBLE;
+        }
+        if (type == Float.class || type == float.class) {
+            return Kind.FLOAT;
+        }
+        if (type == Boolean.class || type == boolean.class) {
+            return Kind.BOOLEAN;
+        }
+        if (type == String.class) {
+            return Kind.STRING;
+        }
+        if (type == LocalDateTime.class) {
+            return Kind.DATE_TIME;
+        }
+        if (type == LocalDate.class) {
+            return Kind.DATE;
+        }
+        return null;
+    }
+
+    private static class Writer {
+        private byte[] buf = new byte[128];
+        private int size;
+
+        private void ensure(int n) {
+            if (size + n > buf.length) {
+                buf = Arrays.copyOf(buf, Math.max(buf.length << 1, size + n));
+            }
+        }
+
+        void write(int b) {
+            ensure(1);
+            buf[size++] = (byte) b;
+        }
+
+        void write(byte[] bytes) {
+            ensure(bytes.length);
+            System.arraycopy(bytes, 0, buf, size, bytes.length);
+            size += bytes.length;
+        }
+
+        void writeInt(int v) {
+            ensure(4);
+            for (int shift = 24; shift >= 0; shift -= 8) {
+                buf[size++] = (byte) (v >>> shift);
+            }
+        }
+
+        void writeLong(long v) {
+            ensure(8);
+            for (int shift = 56; shift >= 0; shift -= 8) {
+                buf[size++] = (byte) (v >>> shift);
+            }
+        }
+
+        /**
+         * zigzag + 变长编码，绝对值小的数占用字节少
+         */
+        void writeVarLong(long v) {
+            long zigzag = (v << 1) ^ (v >> 63);
+            ensure(10);
+            while ((zigzag & ~0x7FL) != 0) {
+                buf[size++] = (byte) ((zigzag & 0x7F) | 0x80);
+                zigzag >>>= 7;
+            }
+            buf[size++] = (byte) zigzag;
+        }
+
+        /**
+         * 预留n个字节，返回起始位置
+         */
+        int reserve(int n) {
+            ensure(n);
+            int start = size;
+            size += n;
+            return start;
+        }
+
+        byte[] toByteArray() {
+            return Arrays.copyOf(buf, size);
+        }
+    }
+
+    private static class Reader {
+        private final byte[] buf;
+        private int pos;
+        private Long expireMillis;
+        private long delta;
+
+        Reader(byte[] buf) {
+            this.buf = buf;
+        }
+
+        int readByte() {
+            return buf[pos++] & 0xFF;
+        }
+
+        int readInt() {
+            int v = 0;
+            for (int i = 0; i < 4; i++) {
+                v = (v << 8) | (buf[pos++] & 0xFF);
+            }
+            return v;
+        }
+
+        long readLong() {
+            long v = 0;
+            for (int i = 0; i < 8; i++) {
+                v = (v << 8) | (buf[pos++] & 0xFF);
+            }
+            return v;
+        }
+
+        long readVarLong() {
+            long zigzag = 0;
+            int shift = 0;
+            byte b;
+            do {
+                b = buf[pos++];
+                zigzag |= (long) (b & 0x7F) << shift;
+                shift += 7;
+            } while ((b & 0x80) != 0);
+            return (zigzag >>> 1) ^ -(zigzag & 1);
+        }
+
+        int skip(int n) {
+            int start = pos;
+            pos += n;
+            return start;
+        }
+    }
+}
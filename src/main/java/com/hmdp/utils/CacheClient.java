@@ -2,126 +2,636 @@ package com.hmdp.utils;
 
 
 import cn.hutool.core.util.BooleanUtil;
-import cn.hutool.core.util.StrUtil;
-import cn.hutool.json.JSONObject;
-import cn.hutool.json.JSONUtil;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.stats.CacheStats;
 import com.hmdp.entity.Shop;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.connection.Message;
+import org.springframework.data.redis.connection.MessageListener;
+import org.springframework.data.redis.connection.RedisStringCommands;
+import org.springframework.data.redis.core.RedisCallback;
 import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.types.Expiration;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
 import org.springframework.stereotype.Component;
 
+import javax.annotation.PostConstruct;
 import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
 import java.time.LocalDateTime;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.TimeUnit;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.function.Function;
+import java.util.function.Supplier;
 
 import static com.hmdp.utils.RedisConstants.*;
 
+/**
+ * 缓存工具：Redis缓存（L2）前面可以加一层进程内缓存（L1），热点数据不再访问Redis、不再解析JSON。
+ * <p>
+ * L1按条数和写入后的存活时间淘汰（Caffeine，W-TinyLFU），缓存的是解析后的对象，调用方不能修改返回的对象。
+ * 删除缓存时通过Redis发布订阅通知所有节点删除L1；广播丢失或者与读并发时，L1最多在存活时间内返回旧数据。
+ * <p>
+ * Redis中的值按 hmdp.cache.codec 编码，读取时按第一个字节识别格式，空值统一写成空字符串
+ */
 @Slf4j
 @Component
-public class CacheClient {
+public class CacheClient implements MessageListener {
 
     @Resource
     private StringRedisTemplate template;
 
+    @Resource
+    private RedisMessageListenerContainer redisMessageListenerContainer;
+
+    @Resource
+    private IdBloomFilter idBloomFilter;
+
+    @Resource
+    private List<CacheCodec> cacheCodecs;
+
+    @Resource
+    private JsonCacheCodec jsonCacheCodec;
+
     // 自定义线程池，可以封装成一个新的类进行引用
     private static final ExecutorService EXECUTOR_SERVICE = Executors.newFixedThreadPool(10);
 
+    // 是否启用本地缓存
+    @Value("${hmdp.cache.local.enabled:true}")
+    private boolean localEnabled;
+    // 本地缓存最大条数
+    @Value("${hmdp.cache.local.maximum-size:10000}")
+    private long localMaximumSize;
+    // 本地缓存写入后的存活时间（毫秒），也是错过失效广播时读到旧数据的最长时间
+    @Value("${hmdp.cache.local.expire-after-write:5000}")
+    private long localExpireAfterWrite;
+
+    // 等待同一key重建结果的最长时间（毫秒）
+    @Value("${hmdp.cache.rebuild-wait:3000}")
+    private long rebuildWait;
+
+    // 逻辑过期提前重建的系数，越大越早重建，0表示只在过期后重建
+    @Value("${hmdp.cache.early-refresh-beta:1.0}")
+    private double earlyRefreshBeta;
+
+    // 写入Redis的格式，实体不支持该格式时使用JSON
+    @Value("${hmdp.cache.codec:json}")
+    private String codecName;
+
+    // 空值写成空字符串
+    private static final byte[] EMPTY = new byte[0];
+    // 解码失败的标记，按未命中处理
+    private static final Object UNREADABLE = new Object();
+
+    private CacheCodec writeCodec;
+    // 版本字节 -> 编解码器，0为JSON
+    private final CacheCodec[] readCodecs = new CacheCodec[0x20];
+
+    private Cache<String, LocalEntry> localCache;
+    // 正在重建的key -> 重建结果，同一JVM内并发未命中的请求共用一次重建
+    private final Map<String, CompletableFuture<Object>> inFlight = new ConcurrentHashMap<>();
+    // 正在后台重建的逻辑过期key
+    private final Set<String> refreshing = ConcurrentHashMap.newKeySet();
+    // key前缀 -> 命中统计
+    private final Map<String, PrefixStats> prefixStats = new ConcurrentHashMap<>();
+
+    /**
+     * 本地缓存的条目，value为null表示缓存的空值
+     */
+    private static class LocalEntry {
+        private final Object value;
+        // 逻辑过期时间，没有逻辑过期时为null
+        private final LocalDateTime expireTime;
+        // 上次重建的耗时（毫秒）
+        private final long delta;
+
+        LocalEntry(Object value, LocalDateTime expireTime, long delta) {
+            this.value = value;
+            this.expireTime = expireTime;
+            this.delta = delta;
+        }
+    }
+
+    private static class PrefixStats {
+        private final LongAdder localHits = new LongAdder();
+        private final LongAdder redisHits = new LongAdder();
+        private final LongAdder misses = new LongAdder();
+        // 被布隆过滤器拦截的请求
+        private final LongAdder rejected = new LongAdder();
+        // 等待其他线程重建结果的请求
+        private final LongAdder coalesced = new LongAdder();
+        // 逻辑过期前提前完成的重建
+        private final LongAdder earlyRefreshes = new LongAdder();
+    }
+
+    @PostConstruct
+    private void init() {
+        // 1.编解码器
+        for (CacheCodec codec : cacheCodecs) {
+            for (int version = 0; version < readCodecs.length; version++) {
+                if (codec.reads(version)) {
+                    readCodecs[version] = codec;
+                }
+            }
+            if (codec.name().equals(codecName)) {
+                writeCodec = codec;
+            }
+        }
+        if (writeCodec == null) {
+            throw new IllegalStateException("未知的缓存格式: " + codecName);
+        }
+        // 2.本地缓存
+        if (!localEnabled) {
+            return;
+        }
+        localCache = Caffeine.newBuilder()
+                .maximumSize(localMaximumSize)
+                .expireAfterWrite(localExpireAfterWrite, TimeUnit.MILLISECONDS)
+                .recordStats()
+                .build();
+        redisMessageListenerContainer.addMessageListener(this, new ChannelTopic(CACHE_INVALIDATE_CHANNEL));
+    }
+
     public void set(String key, Object value, Long time, TimeUnit unit) {
-        template.opsForValue().set(key, JSONUtil.toJsonStr(value), time, unit);
+        setBytes(key, encode(value), Expiration.from(time, unit));
+        evictLocal(key);
     }
 
 
     public void setWithLogicExpire(String key, Object value, Long time, TimeUnit unit) {
+        setWithLogicExpire(key, value, time, unit, 0);
+    }
+
+    /**
+     * @param delta 重建这个值的耗时（毫秒），查询时据此决定提前重建的概率
+     */
+    public void setWithLogicExpire(String key, Object value, Long time, TimeUnit unit, long delta) {
         // 由于要设置逻辑过期时间，因此将其再封装成一个对象。
         RedisData redisData = new RedisData();
         redisData.setData(value);
+        redisData.setDelta(delta);
         // 在现在时间的基础上再增加指定单位的时间--转换成秒
         redisData.setExpireTime(LocalDateTime.now().plusSeconds(unit.toSeconds(time)));
-        template.opsForValue().set(key, JSONUtil.toJsonStr(redisData));
+        CacheCodec codec = codecFor(value == null ? Object.class : value.getClass());
+        setBytes(key, codec.encodeWithExpire(redisData), Expiration.persistent());
+        evictLocal(key);
+    }
+
+    /**
+     * 删除缓存，并通知所有节点删除本地缓存
+     */
+    public void invalidate(String key) {
+        template.delete(key);
+        evictLocal(key);
+        if (localCache != null) {
+            template.convertAndSend(CACHE_INVALIDATE_CHANNEL, key);
+        }
+    }
+
+    @Override
+    public void onMessage(Message message, byte[] pattern) {
+        evictLocal(new String(message.getBody(), StandardCharsets.UTF_8));
+    }
+
+    /**
+     * 各key前缀的命中率
+     */
+    public Map<String, Object> stats() {
+        Map<String, Object> map = new LinkedHashMap<>();
+        if (localCache != null) {
+            CacheStats local = localCache.stats();
+            map.put("localSize", localCache.estimatedSize());
+            map.put("localEvictions", local.evictionCount());
+        }
+        Map<String, Object> prefixes = new ConcurrentSkipListMap<>();
+        prefixStats.forEach((prefix, stats) -> {
+            long localHits = stats.localHits.sum();
+            long redisHits = stats.redisHits.sum();
+            long misses = stats.misses.sum();
+            long requests = localHits + redisHits + misses;
+            Map<String, Object> item = new LinkedHashMap<>();
+            item.put("requests", requests);
+            item.put("localHits", localHits);
+            item.put("redisHits", redisHits);
+            item.put("misses", misses);
+            item.put("rejected", stats.rejected.sum());
+            item.put("coalesced", stats.coalesced.sum());
+            item.put("earlyRefreshes", stats.earlyRefreshes.sum());
+            item.put("localHitRatio", requests == 0 ? 0 : (double) localHits / requests);
+            item.put("hitRatio", requests == 0 ? 0 : (double) (localHits + redisHits) / requests);
+            prefixes.put(prefix, item);
+        });
+        map.put("prefixes", prefixes);
+        return map;
+    }
+
+    private CacheCodec codecFor(Class<?> type) {
+        return writeCodec.supports(type) ? writeCodec : jsonCacheCodec;
+    }
+
+    private byte[] encode(Object value) {
+        if (value == null || "".equals(value)) {
+            return EMPTY;
+        }
+        return codecFor(value.getClass()).encode(value);
+    }
+
+    /**
+     * 按第一个字节选择编解码器，JSON文本的第一个字节不在版本范围内
+     */
+    private CacheCodec codecOf(byte[] bytes) {
+        int version = bytes[0] & 0xFF;
+        CacheCodec codec = version < readCodecs.length ? readCodecs[version] : null;
+        return codec == null ? jsonCacheCodec : codec;
+    }
+
+    /**
+     * 解码Redis中的值，空字符串返回null，无法解码时返回UNREADABLE
+     */
+    private Object decode(String key, byte[] bytes, Class<?> type) {
+        if (bytes.length == 0) {
+            return null;
+        }
+        try {
+            return codecOf(bytes).decode(bytes, type);
+        } catch (RuntimeException e) {
+            log.warn("缓存值无法解码，按未命中处理，key={}", key, e);
+            return UNREADABLE;
+        }
+    }
+
+    /**
+     * 解码带逻辑过期时间的值，空字符串或者无法解码时返回null
+     */
+    private RedisData decodeWithExpire(String key, byte[] bytes, Class<?> type) {
+        if (bytes == null || bytes.length == 0) {
+            return null;
+        }
+        try {
+            return codecOf(bytes).decodeWithExpire(bytes, type);
+        } catch (RuntimeException e) {
+            log.warn("缓存值无法解码，按未命中处理，key={}", key, e);
+            return null;
+        }
+    }
+
+    /**
+     * 只读取逻辑过期时间和重建耗时，不存在或者无法读取时返回null
+     */
+    private RedisData peekExpire(String key) {
+        byte[] bytes = getBytes(key);
+        if (bytes == null || bytes.length == 0) {
+            return null;
+        }
+        try {
+            return codecOf(bytes).peekExpire(bytes);
+        } catch (RuntimeException e) {
+            log.warn("缓存值无法解码，按未命中处理，key={}", key, e);
+            return null;
+        }
+    }
+
+    private byte[] getBytes(String key) {
+        byte[] rawKey = key.getBytes(StandardCharsets.UTF_8);
+        return template.execute((RedisCallback<byte[]>) connection -> connection.get(rawKey));
+    }
+
+    private void setBytes(String key, byte[] value, Expiration expiration) {
+        byte[] rawKey = key.getBytes(StandardCharsets.UTF_8);
+        template.execute((RedisCallback<Object>) connection ->
+                connection.set(rawKey, value, expiration, RedisStringCommands.SetOption.UPSERT));
     }
 
+    private PrefixStats prefixStats(String keyPrefix) {
+        return prefixStats.computeIfAbsent(keyPrefix, k -> new PrefixStats());
+    }
+
+    private LocalEntry getLocal(String key) {
+        return localCache == null ? null : localCache.getIfPresent(key);
+    }
+
+    private void putLocal(String key, Object value, LocalDateTime expireTime) {
+        putLocal(key, value, expireTime, 0);
+    }
+
+    private void putLocal(String key, Object value, LocalDateTime expireTime, long delta) {
+        if (localCache != null) {
+            localCache.put(key, new LocalEntry(value, expireTime, delta));
+        }
+    }
+
+    private void evictLocal(String key) {
+        if (localCache != null) {
+            localCache.invalidate(key);
+        }
+    }
+
+
     // 缓存击穿实现
     public <R, ID> R queryWithPassThrough(String keyPrefix, ID id, Class<R> type, Function<ID, R> dbFallback,Long time, TimeUnit unit) {
         String shopKey = keyPrefix + id;
+        PrefixStats stats = prefixStats(keyPrefix);
+        // 0. 布隆过滤器判断id不存在，直接返回，不访问Redis和数据库
+        if (!idBloomFilter.mightContainKey(keyPrefix, id)) {
+            stats.rejected.increment();
+            return null;
+        }
+        // 先查本地缓存，空值也会命中
+        LocalEntry local = getLocal(shopKey);
+        if (local != null) {
+            stats.localHits.increment();
+            return type.cast(local.value);
+        }
         // 1. 从redis中查询商铺缓存
-        String jsonShop = template.opsForValue().get(shopKey);
+        byte[] bytes = getBytes(shopKey);
         // 2. 判断缓存是否命中
-        if (StrUtil.isNotBlank(jsonShop)) {
-            // 3. 命中则直接返回商铺信息
-            return JSONUtil.toBean(jsonShop, type);
+        Object value = bytes == null ? UNREADABLE : decode(shopKey, bytes, type);
+        if (value != UNREADABLE) {
+            // 3. 命中则直接返回商铺信息，空字符串是缓存的空值
+            R r = type.cast(value);
+            stats.redisHits.increment();
+            putLocal(shopKey, r, null);
+            return r;
         }
-        // 可能是null 或者"";
-        if (jsonShop != null) {
+        // 4. 未命中根据id查询数据库，同一key的并发请求只查一次
+        stats.misses.increment();
+        return singleFlight(shopKey, stats, type, () -> load(shopKey, id, dbFallback, time, unit));
+    }
+
+    /**
+     * 互斥锁解决缓存击穿：同一JVM内并发未命中的请求共用一次重建，只有发起重建的线程去抢Redis互斥锁，
+     * 其他线程等待重建结果，不休眠重试
+     */
+    public <R, ID> R queryWithMutex(String keyPrefix, ID id, Class<R> type, Function<ID, R> dbFallback, Long time, TimeUnit unit) {
+        String key = keyPrefix + id;
+        PrefixStats stats = prefixStats(keyPrefix);
+        // 1. 布隆过滤器判断id不存在，直接返回
+        if (!idBloomFilter.mightContainKey(keyPrefix, id)) {
+            stats.rejected.increment();
             return null;
         }
-        R r = dbFallback.apply(id);
-        // 4. 未命中根据id查询数据库
-        if (r == null) {
-            // 5. 空值写入redis。
-            this.set(shopKey,"",time,unit);
-            // 判断商铺是否存在-不存在返回报错信息
-            return null;
+        // 2. 查本地缓存和Redis
+        LocalEntry local = getLocal(key);
+        if (local != null) {
+            stats.localHits.increment();
+            return type.cast(local.value);
         }
-        // 6. 存在则写入Redis中
-        this.set(shopKey,r,time,unit);
-        // 7. 返回店铺信息
+        byte[] bytes = getBytes(key);
+        Object value = bytes == null ? UNREADABLE : decode(key, bytes, type);
+        if (value != UNREADABLE) {
+            stats.redisHits.increment();
+            R r = type.cast(value);
+            putLocal(key, r, null);
+            return r;
+        }
+        // 3. 未命中，重建缓存
+        stats.misses.increment();
+        return singleFlight(key, stats, type, () -> {
+            String lockKey = CACHE_LOCK_KEY + key;
+            if (!tryLock(lockKey)) {
+                // 其他节点正在重建，本节点直接查一次数据库，不写缓存
+                return dbFallback.apply(id);
+            }
+            try {
+                // 获取锁后再查一次，其他节点可能刚重建完
+                byte[] doubleCheck = getBytes(key);
+                Object doubleValue = doubleCheck == null ? UNREADABLE : decode(key, doubleCheck, type);
+                if (doubleValue != UNREADABLE) {
+                    R r = type.cast(doubleValue);
+                    putLocal(key, r, null);
+                    return r;
+                }
+                return load(key, id, dbFallback, time, unit);
+            } finally {
+                unlock(lockKey);
+            }
+        });
+    }
+
+    /**
+     * 查询数据库并写入缓存，不存在时写入空值
+     */
+    private <R, ID> R load(String key, ID id, Function<ID, R> dbFallback, Long time, TimeUnit unit) {
+        R r = dbFallback.apply(id);
+        // 空值也写入redis，防止缓存穿透
+        this.set(key, r == null ? "" : r, time, unit);
+        putLocal(key, r, null);
         return r;
     }
 
-    // 缓存穿透- 基于逻辑缓存
+    /**
+     * 同一key同时只有一个线程执行loader，其他线程等待它的结果，最多等待 rebuild-wait 毫秒
+     */
+    private <R> R singleFlight(String key, PrefixStats stats, Class<R> type, Supplier<R> loader) {
+        CompletableFuture<Object> future = new CompletableFuture<>();
+        CompletableFuture<Object> existing = inFlight.putIfAbsent(key, future);
+        // 1. 已经有线程在重建，等待结果
+        if (existing != null) {
+            stats.coalesced.increment();
+            try {
+                return type.cast(existing.get(rebuildWait, TimeUnit.MILLISECONDS));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("等待缓存重建被中断，key=" + key, e);
+            } catch (ExecutionException e) {
+                throw new IllegalStateException("缓存重建失败，key=" + key, e.getCause());
+            } catch (TimeoutException e) {
+                throw new IllegalStateException("等待缓存重建超时，key=" + key, e);
+            }
+        }
+        // 2. 由当前线程重建，完成后唤醒等待的线程
+        try {
+            R r = loader.get();
+            future.complete(r);
+            return r;
+        } catch (RuntimeException e) {
+            future.completeExceptionally(e);
+            throw e;
+        } finally {
+            inFlight.remove(key, future);
+        }
+    }
+
+    /**
+     * 批量查询，空值缓存规则与queryWithPassThrough相同：一次MGET查Redis，未命中的id用一次批量查询加载，再用管道写回Redis
+     * @param dbFallback 批量查询数据库，返回 id -> 实体，不存在的id不需要出现在结果中
+     * @return 与ids顺序一致，不存在的id对应null
+     */
+    public <R, ID> List<R> queryBatchWithPassThrough(String keyPrefix, List<ID> ids, Class<R> type,
+                                                     Function<List<ID>, Map<ID, R>> dbFallback, Long time, TimeUnit unit) {
+        PrefixStats stats = prefixStats(keyPrefix);
+        Map<ID, R> found = new HashMap<>(ids.size());
+        // 1. 过滤掉布隆过滤器判断不存在的id和重复的id，先查本地缓存
+        List<ID> remoteIds = new ArrayList<>(ids.size());
+        Set<ID> seen = new HashSet<>(ids.size());
+        for (ID id : ids) {
+            if (!seen.add(id)) {
+                continue;
+            }
+            if (!idBloomFilter.mightContainKey(keyPrefix, id)) {
+                stats.rejected.increment();
+                continue;
+            }
+            LocalEntry local = getLocal(keyPrefix + id);
+            if (local != null) {
+                stats.localHits.increment();
+                found.put(id, type.cast(local.value));
+                continue;
+            }
+            remoteIds.add(id);
+        }
+        // 2. 一次MGET查询Redis
+        List<ID> missIds = new ArrayList<>();
+        if (!remoteIds.isEmpty()) {
+            byte[][] keys = remoteIds.stream()
+                    .map(id -> (keyPrefix + id).getBytes(StandardCharsets.UTF_8))
+                    .toArray(byte[][]::new);
+            List<byte[]> values = template.execute((RedisCallback<List<byte[]>>) connection -> connection.mGet(keys));
+            for (int i = 0; i < remoteIds.size(); i++) {
+                ID id = remoteIds.get(i);
+                byte[] bytes = values == null ? null : values.get(i);
+                Object value = bytes == null ? UNREADABLE : decode(keyPrefix + id, bytes, type);
+                // 2.1 未命中或者无法解码
+                if (value == UNREADABLE) {
+                    missIds.add(id);
+                    continue;
+                }
+                // 2.2 命中，空字符串是缓存的空值
+                stats.redisHits.increment();
+                R r = type.cast(value);
+                found.put(id, r);
+                putLocal(keyPrefix + id, r, null);
+            }
+        }
+        // 3. 未命中的id一次查询数据库，用管道写回Redis，不存在的写入空值
+        if (!missIds.isEmpty()) {
+            stats.misses.add(missIds.size());
+            Map<ID, R> loaded = dbFallback.apply(missIds);
+            Expiration expiration = Expiration.from(time, unit);
+            template.executePipelined((RedisCallback<Object>) connection -> {
+                for (ID id : missIds) {
+                    connection.set((keyPrefix + id).getBytes(StandardCharsets.UTF_8), encode(loaded.get(id)),
+                            expiration, RedisStringCommands.SetOption.UPSERT);
+                }
+                return null;
+            });
+            for (ID id : missIds) {
+                R r = loaded.get(id);
+                found.put(id, r);
+                putLocal(keyPrefix + id, r, null);
+            }
+        }
+        // 4. 按输入顺序返回
+        List<R> result = new ArrayList<>(ids.size());
+        for (ID id : ids) {
+            result.add(found.get(id));
+        }
+        return result;
+    }
+
+    /**
+     * 逻辑过期：值一直保留在Redis中，过期后由一个线程在后台重建，期间返回旧值。
+     * <p>
+     * 快到期时按XFetch算法提前重建：每次读取以 delta * beta * -ln(rand) 作为提前量，
+     * delta是上次重建的耗时，越接近过期、重建越慢，提前重建的概率越大。
+     * 热点key通常在过期前就被某一次读取触发重建，各节点不会在同一时刻一起抢锁
+     */
     public <R, ID> R queryWithExpireTime(String keyPrefix, ID id, Class<R> type, Function<ID, R> dbFallback,Long time, TimeUnit unit) {
         String shopKey = keyPrefix + id;
+        PrefixStats stats = prefixStats(keyPrefix);
+        // 0. 先查本地缓存，逻辑过期后再到redis中确认
+        LocalEntry local = getLocal(shopKey);
+        if (local != null && local.expireTime.isAfter(LocalDateTime.now())) {
+            stats.localHits.increment();
+            if (shouldRefresh(local.expireTime, local.delta)) {
+                refreshAsync(shopKey, id, local.expireTime, dbFallback, time, unit, stats);
+            }
+            return type.cast(local.value);
+        }
         // 1. 从redis中查询商铺缓存
-        String jsonShop = template.opsForValue().get(shopKey);
+        RedisData redisData = decodeWithExpire(shopKey, getBytes(shopKey), type);
         // 2. 判断缓存是否命中
-        if (StrUtil.isBlank(jsonShop)) {
-            // 3. 命中则直接返回商铺信息
+        if (redisData == null) {
+            // 3. 未命中（包括空值和无法解码）直接返回，逻辑过期的数据需要提前预热
+            stats.misses.increment();
             return null;
         }
-        // 缓存穿透判断可能是null 或者"";
         // 4. 命中
-        // 4.1 判断缓存是否过期
-        RedisData redisData = JSONUtil.toBean(jsonShop, RedisData.class);
-        JSONObject data = (JSONObject) redisData.getData();
-        R r = JSONUtil.toBean(data, type);
+        R r = type.cast(redisData.getData());
         LocalDateTime expireTime = redisData.getExpireTime();
+        stats.redisHits.increment();
         if (expireTime.isAfter(LocalDateTime.now())) {
-            // 4.2 未过期
-            return r;
+            putLocal(shopKey, r, expireTime, redisData.getDelta());
+        }
+        // 5. 已经过期，或者快到期时按概率提前，在后台重建
+        if (shouldRefresh(expireTime, redisData.getDelta())) {
+            refreshAsync(shopKey, id, expireTime, dbFallback, time, unit, stats);
+        }
+        // 6. 返回店铺信息
+        return r;
+    }
+
+    /**
+     * XFetch：剩余时间小于 delta * beta * -ln(rand) 时提前重建，rand在(0, 1]之间均匀分布
+     */
+    private boolean shouldRefresh(LocalDateTime expireTime, long delta) {
+        long remaining = Duration.between(LocalDateTime.now(), expireTime).toMillis();
+        if (remaining <= 0) {
+            return true;
+        }
+        if (delta <= 0 || earlyRefreshBeta <= 0) {
+            return false;
+        }
+        double gap = -delta * earlyRefreshBeta * Math.log(1 - ThreadLocalRandom.current().nextDouble());
+        return gap >= remaining;
+    }
+
+    /**
+     * 在后台重建逻辑过期的缓存，本节点同一key同时只提交一次，多个节点之间用互斥锁保证只有一个重建
+     * @param seenExpireTime 触发重建时读到的过期时间，Redis中的过期时间已经更新说明其他节点重建过了
+     */
+    private <R, ID> void refreshAsync(String key, ID id, LocalDateTime seenExpireTime, Function<ID, R> dbFallback,
+                                      Long time, TimeUnit unit, PrefixStats stats) {
+        if (!refreshing.add(key)) {
+            return;
         }
-        // 4.3 过期尝试获取锁
-        String lockKey = LOCK_SHOP_KEY + id;
-        boolean flag = tryLock(lockKey);
-        if (flag) {
-            String doubleCheck = template.opsForValue().get(shopKey);
-            if (StrUtil.isNotBlank(doubleCheck)) {
-                if (expireTime.isAfter(LocalDateTime.now())) {
-                    // 没有过期就直接返回
-                    RedisData doubleData = JSONUtil.toBean(jsonShop, RedisData.class);
-                    return JSONUtil.toBean((JSONObject) doubleData.getData(), type);
+        EXECUTOR_SERVICE.submit(() -> {
+            String lockKey = LOCK_SHOP_KEY + id;
+            try {
+                // 1. 获取锁失败说明其他节点正在重建
+                if (!tryLock(lockKey)) {
+                    return;
                 }
-            }
-            // 5. 获取锁成功开启独立线程
-            EXECUTOR_SERVICE.submit(() ->{
                 try {
-                    // 重建缓存
-                    R r1 = dbFallback.apply(id);
-
-                    // 写入redis
-                    this.setWithLogicExpire(shopKey,r1,time,unit);
-                } catch (Exception e) {
-                    throw new RuntimeException(e);
+                    // 2. 获取锁后只读取过期时间，不解码数据，其他节点已经重建过就不再查询数据库
+                    RedisData header = peekExpire(key);
+                    if (header != null && header.getExpireTime().isAfter(seenExpireTime)) {
+                        evictLocal(key);
+                        return;
+                    }
+                    // 3. 重建缓存，记录耗时
+                    long begin = System.currentTimeMillis();
+                    R r = dbFallback.apply(id);
+                    long delta = System.currentTimeMillis() - begin;
+                    this.setWithLogicExpire(key, r, time, unit, delta);
+                    if (seenExpireTime.isAfter(LocalDateTime.now())) {
+                        stats.earlyRefreshes.increment();
+                    }
                 } finally {
-                    // 6. 释放锁
+                    // 4. 释放锁
                     unlock(lockKey);
                 }
-            });
-        }
-        // 7. 返回店铺信息
-        return r;
+            } catch (Exception e) {
+                log.error("重建缓存失败，key={}", key, e);
+            } finally {
+                refreshing.remove(key);
+            }
+        });
     }
 
     public boolean tryLock(String key) {
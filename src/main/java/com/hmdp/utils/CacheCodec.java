@@ -0,0 +1,54 @@
+package com.hmdp.utils;
+
+/**
+ * 缓存值的编解码器，CacheClient按 hmdp.cache.codec 选择写入格式，读取时按值的第一个字节识别格式。
+ * <p>
+ * 带版本字节的格式第一个字节是格式版本（0x01~0x1F），JSON文本的第一个字节不会落在这个范围内，
+ * 因此新旧格式可以共存：先发布能读新格式的版本，所有节点升级后再切换写入格式
+ */
+public interface CacheCodec {
+
+    /**
+     * 配置中使用的名称
+     */
+    String name();
+
+    /**
+     * 写在值开头的格式版本，没有版本字节的格式（JSON）返回0
+     */
+    byte version();
+
+    /**
+     * 能否读取该版本的值，升级格式后仍要能读旧版本
+     */
+    default boolean reads(int version) {
+        return version == version();
+    }
+
+    /**
+     * 是否能编码该类型，不能编码时CacheClient改用JSON
+     */
+    boolean supports(Class<?> type);
+
+    byte[] encode(Object value);
+
+    /**
+     * 解码，格式不匹配（如实体字段变化后的旧数据）时抛出IllegalArgumentException，CacheClient按未命中处理
+     */
+    <T> T decode(byte[] bytes, Class<T> type);
+
+    /**
+     * 编码带逻辑过期时间的值
+     */
+    byte[] encodeWithExpire(RedisData redisData);
+
+    /**
+     * 解码带逻辑过期时间的值，返回的RedisData中data为type类型的对象
+     */
+    RedisData decodeWithExpire(byte[] bytes, Class<?> type);
+
+    /**
+     * 只读取逻辑过期时间和重建耗时，不解码数据，返回的RedisData中data为null
+     */
+    RedisData peekExpire(byte[] bytes);
+}
@@ -0,0 +1,271 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.lang.UUID;
+import cn.hutool.core.lang.hash.MurmurHash;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.connection.Message;
+import org.springframework.data.redis.connection.MessageListener;
+import org.springframework.data.redis.connection.RedisStringCommands;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.BiFunction;
+
+import static com.hmdp.utils.RedisConstants.BLOOM_ADD_CHANNEL;
+import static com.hmdp.utils.RedisConstants.BLOOM_KEY;
+
+/**
+ * 按实体类型保存已存在id的布隆过滤器，用来拦截不可能存在的id，防止缓存穿透。
+ * <p>
+ * 位图保存在Redis字符串 bloom:{类型}:{位数}:{哈希函数个数} 中，各节点在本地保留一份，查询只读本地副本，不访问Redis。
+ * 启动时按id分页扫描数据库表构建，再与Redis中的位图合并（BITOP OR），不会覆盖其他节点同时写入的位；
+ * 新增实体时同时写本地和Redis，并通过发布订阅通知其他节点，定时从Redis合并一次，弥补丢失的通知。
+ * 还没构建完成的类型一律放行
+ */
+@Slf4j
+@Component
+public class IdBloomFilter implements MessageListener {
+
+    // 预计的实体数量
+    @Value("${hmdp.bloom.expected-insertions:1000000}")
+    private long expectedInsertions;
+    // 误判率
+    @Value("${hmdp.bloom.fpp:0.01}")
+    private double fpp;
+    // 扫描数据库的每页大小
+    @Value("${hmdp.bloom.page-size:1000}")
+    private int pageSize;
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private RedisMessageListenerContainer redisMessageListenerContainer;
+
+    // 实体类型 -> 过滤器
+    private final Map<String, Filter> filters = new ConcurrentHashMap<>();
+    // 缓存key前缀 -> 实体类型
+    private final Map<String, String> keyPrefixes = new ConcurrentHashMap<>();
+
+    private static class Filter {
+        private final String key;
+        private final long bits;
+        private final int hashes;
+        private final AtomicLongArray words;
+        // 构建完成前放行所有id
+        private volatile boolean ready;
+
+        Filter(String key, long bits, int hashes) {
+            this.key = key;
+            this.bits = bits;
+            this.hashes = hashes;
+            this.words = new AtomicLongArray((int) ((bits + 63) >>> 6));
+        }
+
+        /**
+         * 双重哈希计算id对应的位：h1 + i * h2
+         */
+        long[] offsets(Object id) {
+            long[] hash = MurmurHash.hash128(id.toString());
+            long[] offsets = new long[hashes];
+            long combined = hash[0];
+            for (int i = 0; i < hashes; i++) {
+                offsets[i] = (combined & Long.MAX_VALUE) % bits;
+                combined += hash[1];
+            }
+            return offsets;
+        }
+
+        boolean mightContain(long[] offsets) {
+            for (long offset : offsets) {
+                if ((words.get((int) (offset >>> 6)) & (1L << offset)) == 0) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        void set(long offset) {
+            int i = (int) (offset >>> 6);
+            long mask = 1L << offset;
+            long word;
+            while (((word = words.get(i)) & mask) == 0 && !words.compareAndSet(i, word, word | mask)) {
+                // 重试
+            }
+        }
+
+        /**
+         * 转换为Redis位图的字节序：第0位是第一个字节的最高位
+         */
+        byte[] toBytes() {
+            byte[] bytes = new byte[(int) ((bits + 7) >>> 3)];
+            for (int i = 0; i < words.length(); i++) {
+                long word = words.get(i);
+                while (word != 0) {
+                    long offset = ((long) i << 6) + Long.numberOfTrailingZeros(word);
+                    bytes[(int) (offset >>> 3)] |= 0x80 >>> (offset & 7);
+                    word &= word - 1;
+                }
+            }
+            return bytes;
+        }
+
+        void merge(byte[] bytes) {
+            int length = (int) Math.min(bytes.length, (bits + 7) >>> 3);
+            for (int i = 0; i < length; i++) {
+                int b = bytes[i] & 0xFF;
+                while (b != 0) {
+                    int bit = Integer.numberOfLeadingZeros(b) - 24;
+                    set(((long) i << 3) + bit);
+                    b &= ~(0x80 >>> bit);
+                }
+            }
+        }
+    }
+
+    @PostConstruct
+    private void init() {
+        redisMessageListenerContainer.addMessageListener(this, new ChannelTopic(BLOOM_ADD_CHANNEL));
+    }
+
+    /**
+     * 构建一种实体的过滤器
+     * @param type 实体类型，如 shop
+     * @param keyPrefix 该实体的缓存key前缀，CacheClient按前缀找到过滤器
+     * @param pageLoader 按id升序分页查询已存在的id，参数为上一页最大的id和每页大小
+     */
+    public void build(String type, String keyPrefix, BiFunction<Long, Integer, List<Long>> pageLoader) {
+        // 1.按预计数量和误判率计算位数和哈希函数个数
+        long bits = Math.max(64, (long) Math.ceil(-expectedInsertions * Math.log(fpp) / (Math.log(2) * Math.log(2))));
+        int hashes = Math.max(1, (int) Math.round((double) bits / expectedInsertions * Math.log(2)));
+        Filter filter = new Filter(BLOOM_KEY + "{" + type + "}:" + bits + ":" + hashes, bits, hashes);
+        // 先注册再扫描，扫描期间新增的实体也会写入
+        filters.put(type, filter);
+        keyPrefixes.put(keyPrefix, type);
+        try {
+            // 2.分页扫描数据库
+            long count = 0;
+            long lastId = 0;
+            while (true) {
+                List<Long> ids = pageLoader.apply(lastId, pageSize);
+                for (Long id : ids) {
+                    for (long offset : filter.offsets(id)) {
+                        filter.set(offset);
+                    }
+                }
+                count += ids.size();
+                if (ids.size() < pageSize) {
+                    break;
+                }
+                lastId = ids.get(ids.size() - 1);
+            }
+            // 3.合并到Redis，再把其他节点写入的位合并回本地
+            String tmpKey = filter.key + ":tmp:" + UUID.randomUUID().toString(true);
+            byte[] key = filter.key.getBytes(StandardCharsets.UTF_8);
+            byte[] tmp = tmpKey.getBytes(StandardCharsets.UTF_8);
+            byte[] bytes = filter.toBytes();
+            stringRedisTemplate.execute((RedisCallback<Object>) connection -> {
+                connection.set(tmp, bytes);
+                connection.bitOp(RedisStringCommands.BitOperation.OR, key, key, tmp);
+                connection.del(tmp);
+                return null;
+            });
+            sync(filter);
+            filter.ready = true;
+            log.info("布隆过滤器{}构建完成，id{}个，位数{}，哈希函数{}个", type, count, bits, hashes);
+        } catch (Exception e) {
+            // 构建失败时保持放行
+            log.error("布隆过滤器{}构建失败", type, e);
+        }
+    }
+
+    /**
+     * id是否可能存在，过滤器还没构建完成时返回true
+     */
+    public boolean mightContain(String type, Object id) {
+        Filter filter = filters.get(type);
+        return filter == null || !filter.ready || filter.mightContain(filter.offsets(id));
+    }
+
+    /**
+     * 按缓存key前缀查找过滤器，没有对应过滤器时返回true
+     */
+    public boolean mightContainKey(String keyPrefix, Object id) {
+        String type = keyPrefixes.get(keyPrefix);
+        return type == null || mightContain(type, id);
+    }
+
+    /**
+     * 新增实体后写入过滤器，并通知其他节点
+     */
+    public void add(String type, Object id) {
+        Filter filter = filters.get(type);
+        if (filter == null) {
+            return;
+        }
+        long[] offsets = filter.offsets(id);
+        for (long offset : offsets) {
+            filter.set(offset);
+        }
+        byte[] key = filter.key.getBytes(StandardCharsets.UTF_8);
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            for (long offset : offsets) {
+                connection.setBit(key, offset, true);
+            }
+            return null;
+        });
+        stringRedisTemplate.convertAndSend(BLOOM_ADD_CHANNEL, type + ":" + id);
+    }
+
+    @Override
+    public void onMessage(Message message, byte[] pattern) {
+        // 类型:id
+        String body = new String(message.getBody(), StandardCharsets.UTF_8);
+        int i = body.indexOf(':');
+        Filter filter = i < 0 ? null : filters.get(body.substring(0, i));
+        if (filter == null) {
+            return;
+        }
+        for (long offset : filter.offsets(body.substring(i + 1))) {
+            filter.set(offset);
+        }
+    }
+
+    /**
+     * 定时从Redis合并，弥补丢失的新增通知
+     */
+    @Scheduled(fixedDelayString = "${hmdp.bloom.sync-interval:300000}",
+            initialDelayString = "${hmdp.bloom.sync-interval:300000}")
+    public void sync() {
+        for (Filter filter : filters.values()) {
+            if (!filter.ready) {
+                continue;
+            }
+            try {
+                sync(filter);
+            } catch (Exception e) {
+                log.error("同步布隆过滤器失败，key={}", filter.key, e);
+            }
+        }
+    }
+
+    private void sync(Filter filter) {
+        byte[] key = filter.key.getBytes(StandardCharsets.UTF_8);
+        byte[] bytes = stringRedisTemplate.execute((RedisCallback<byte[]>) connection -> connection.get(key));
+        if (bytes != null) {
+            filter.merge(bytes);
+        }
+    }
+}
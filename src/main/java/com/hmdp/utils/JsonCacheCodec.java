@@ -0,0 +1,115 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.date.LocalDateTimeUtil;
+import cn.hutool.json.JSONConfig;
+import cn.hutool.json.JSONObject;
+import cn.hutool.json.JSONUtil;
+import org.springframework.stereotype.Component;
+
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+
+/**
+ * JSON格式，与原来用StringRedisTemplate写入的文本逐字节相同，没有版本字节。
+ * 带逻辑过期时间的值按 expireTime、delta、data 的顺序写入，读取过期时间时只扫描开头，不解析data
+ */
+@Component
+public class JsonCacheCodec implements CacheCodec {
+
+    private static final byte[] EXPIRE_PREFIX = "{\"expireTime\":".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] DELTA_PREFIX = ",\"delta\":".getBytes(StandardCharsets.UTF_8);
+
+    @Override
+    public String name() {
+        return "json";
+    }
+
+    @Override
+    public byte version() {
+        return 0;
+    }
+
+    @Override
+    public boolean supports(Class<?> type) {
+        return true;
+    }
+
+    @Override
+    public byte[] encode(Object value) {
+        return JSONUtil.toJsonStr(value).getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public <T> T decode(byte[] bytes, Class<T> type) {
+        return JSONUtil.toBean(new String(bytes, StandardCharsets.UTF_8), type);
+    }
+
+    @Override
+    public byte[] encodeWithExpire(RedisData redisData) {
+        // 固定字段顺序，过期时间写成毫秒数，与JSONUtil转换LocalDateTime的结果相同
+        JSONObject json = JSONUtil.createObj(JSONConfig.create().setOrder(true))
+                .set("expireTime", LocalDateTimeUtil.toEpochMilli(redisData.getExpireTime()))
+                .set("delta", redisData.getDelta())
+                .set("data", redisData.getData());
+        return json.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public RedisData decodeWithExpire(byte[] bytes, Class<?> type) {
+        // 只解析一次文本，data直接转换为目标类型
+        JSONObject json = JSONUtil.parseObj(new String(bytes, StandardCharsets.UTF_8));
+        RedisData redisData = new RedisData();
+        redisData.setExpireTime(json.get("expireTime", LocalDateTime.class));
+        redisData.setDelta(json.getLong("delta", 0L));
+        JSONObject data = json.getJSONObject("data");
+        redisData.setData(data == null ? null : data.toBean(type));
+        return redisData;
+    }
+
+    @Override
+    public RedisData peekExpire(byte[] bytes) {
+        // 1.按固定顺序写入的值只扫描开头的两个数字
+        int[] pos = {0};
+        if (skip(bytes, pos, EXPIRE_PREFIX)) {
+            long expireMillis = readLong(bytes, pos);
+            long delta = skip(bytes, pos, DELTA_PREFIX) ? readLong(bytes, pos) : 0;
+            if (expireMillis >= 0 && delta >= 0) {
+                RedisData redisData = new RedisData();
+                redisData.setExpireTime(LocalDateTimeUtil.of(expireMillis));
+                redisData.setDelta(delta);
+                return redisData;
+            }
+        }
+        // 2.旧格式的字段顺序不确定，解析整个文本
+        JSONObject json = JSONUtil.parseObj(new String(bytes, StandardCharsets.UTF_8));
+        RedisData redisData = new RedisData();
+        redisData.setExpireTime(json.get("expireTime", LocalDateTime.class));
+        redisData.setDelta(json.getLong("delta", 0L));
+        return redisData;
+    }
+
+    private static boolean skip(byte[] bytes, int[] pos, byte[] prefix) {
+        if (bytes.length - pos[0] < prefix.length) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length; i++) {
+            if (bytes[pos[0] + i] != prefix[i]) {
+                return false;
+            }
+        }
+        pos[0] += prefix.length;
+        return true;
+    }
+
+    /**
+     * 读取非负整数，没有数字时返回-1
+     */
+    private static long readLong(byte[] bytes, int[] pos) {
+        int start = pos[0];
+        long value = 0;
+        while (pos[0] < bytes.length && pos[0] - start < 18 && bytes[pos[0]] >= '0' && bytes[pos[0]] <= '9') {
+            value = value * 10 + (bytes[pos[0]++] - '0');
+        }
+        return pos[0] == start ? -1 : value;
+    }
+}
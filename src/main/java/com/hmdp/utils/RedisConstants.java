@@ -10,11 +10,57 @@ public class RedisConstants {
 
     public static final Long CACHE_SHOP_TTL = 30L;
     public static final String CACHE_SHOP_KEY = "cache:shop:";
+    public static final String BLOOM_SHOP = "shop";
 
+    // 缓存失效广播，消息内容为被删除的key，各节点收到后删除本地缓存
+    public static final String CACHE_INVALIDATE_CHANNEL = "cache:invalidate";
+
+    // 已存在id的布隆过滤器位图，完整key为 bloom:{类型}:{位数}:{哈希函数个数}
+    public static final String BLOOM_KEY = "bloom:";
+    // 新增id广播，消息内容为 类型:id
+    public static final String BLOOM_ADD_CHANNEL = "bloom:add";
+
+    // 缓存重建互斥锁，完整key为 lock:{缓存key}
+    public static final String CACHE_LOCK_KEY = "lock:";
     public static final String LOCK_SHOP_KEY = "lock:shop:";
     public static final Long LOCK_SHOP_TTL = 10L;
 
+    // 秒杀相关key按优惠券分区，同一分区的key带相同的hash tag {分区号}，落在Redis Cluster的同一个slot，
+    // 秒杀脚本才能在集群中执行；分区数决定秒杀负载最多分散到多少个slot，修改前需要迁移已有的key，见SeckillKeys
+    public static final Integer SECKILL_PARTITIONS = 16;
     public static final String SECKILL_STOCK_KEY = "seckill:stock:";
+    public static final String SECKILL_ORDER_KEY = "seckill:order:";
+    // 库存分片数，分片库存key为 seckill:stock:{分区}:{id}:{shard}
+    public static final String SECKILL_SHARDS_KEY = "seckill:shards:";
+    // 库存分片的优惠券id集合，供后台均衡任务遍历
+    public static final String SECKILL_SHARDED_KEY = "seckill:sharded";
+    public static final Integer SECKILL_MAX_SHARDS = 64;
+    public static final String SECKILL_SOLD_OUT_CHANNEL = "seckill:soldout";
+    // 秒杀券元数据哈希：begin、end（毫秒时间戳）、stock（初始库存）、shards
+    public static final String SECKILL_META_KEY = "seckill:meta:";
+    // 异步下单结果槽，值为 userId|status|reason
+    public static final String SECKILL_RESULT_KEY = "seckill:result:";
+    public static final Long SECKILL_RESULT_TTL = 30L;
+    public static final String SECKILL_RESULT_CHANNEL = "seckill:result";
+    public static final String SECKILL_STREAM_KEY = "stream.orders";
+    public static final String SECKILL_STREAM_GROUP = "g1";
+    // 消费者超过该时长未ACK的消息，视为宕机节点遗留，启动时认领
+    public static final Long SECKILL_STREAM_CLAIM_IDLE = 60000L;
+    // 多次重试仍无法落库的订单
+    public static final String SECKILL_DEAD_LETTER_KEY = "stream.orders.dlq";
+    // 订单落库后广播订单id，受理订单的节点据此标记本地订单日志完成
+    public static final String SECKILL_JOURNAL_DONE_CHANNEL = "seckill:journal:done";
+    // 待支付订单的超时队列，score为到期时间，member为 订单id:优惠券id:用户id
+    public static final String SECKILL_PAY_TIMEOUT_KEY = "seckill:pay:timeout";
+    // 到期时订单还没有落库的次数，field为超时任务的member
+    public static final String SECKILL_PAY_MISSING_KEY = "seckill:pay:missing";
+    // 超时后仍未落库、已归还Redis库存的订单，重放死信时跳过，单位天
+    public static final String SECKILL_PAY_ORPHAN_KEY = "seckill:pay:orphan:";
+    public static final Long SECKILL_PAY_ORPHAN_TTL = 30L;
+    // 秒杀券订单锁：修复库存时持有，重放订单、超时取消等不经过消息队列改动订单和库存的操作也要获取
+    public static final String SECKILL_VOUCHER_LOCK_KEY = "lock:seckill:voucher:";
+    // 本地ID生成器的workerId租约，值为 持有节点标识:最后发号时间:到期时间，不设置过期时间
+    public static final String ID_WORKER_KEY = "id:worker:";
     public static final String BLOG_LIKED_KEY = "blog:liked:";
     public static final String FEED_KEY = "feed:";
     public static final String SHOP_GEO_KEY = "shop:geo:";
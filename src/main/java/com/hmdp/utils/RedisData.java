@@ -7,5 +7,7 @@ import java.time.LocalDateTime;
 @Data
 public class RedisData {
     private LocalDateTime expireTime;
+    // 上次重建的耗时（毫秒），决定提前重建的概率，0表示只在过期后重建
+    private long delta;
     private Object data;
 }
@@ -1,39 +1,195 @@
 package com.hmdp.utils;
 
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.stereotype.Component;
 
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import java.time.LocalDate;
 import java.time.LocalDateTime;
 import java.time.ZoneOffset;
 import java.time.format.DateTimeFormatter;
-import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
 
+/**
+ * 全局ID生成器：高位是时间戳（秒），低32位是序列号，序列号按业务前缀和日期在Redis中自增。
+ * <p>
+ * 号段模式（segment-size > 0）下每个节点用INCRBY一次预留一段序列号，在本地用AtomicLong发放，
+ * 当前号段用掉一定比例后异步预取下一段，正常情况下生成ID不访问Redis；
+ * 号段只在预留它的那一天使用，跨天后丢弃剩余的号码，保证同一秒内的序列号不会重复。
+ * 号段模式生成的ID在节点之间不再严格递增，只保证唯一和大致有序。
+ * <p>
+ * 通过 hmdp.id.snowflake-prefixes 指定的业务前缀改由SnowflakeIdWorker在本地生成
+ */
+@Slf4j
 @Component
 public class RedisIdWorker {
 
     private static final long BEGIN_TIMESTAMP = 1718496000L;
     private static final int COUNT_BITS = 32;
+    private static final long SECONDS_PER_DAY = 86400L;
+    private static final DateTimeFormatter DATE_FORMATTER = DateTimeFormatter.ofPattern("yyyy:MM:dd");
 
     private StringRedisTemplate stringRedisTemplate;
+    // 按业务前缀启用的本地生成器
+    @Resource
+    private SnowflakeIdWorker snowflakeIdWorker;
+    // 号段大小，0表示每次生成ID都访问Redis
+    private final int segmentSize;
+    // 当前号段用掉该比例后预取下一段
+    private final double prefetchRatio;
 
-    public RedisIdWorker(StringRedisTemplate stringRedisTemplate){
+    // 业务前缀 -> 号段缓冲
+    private final Map<String, SegmentBuffer> buffers = new ConcurrentHashMap<>();
+    private final ExecutorService prefetchExecutor = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "id-segment-prefetch");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    public RedisIdWorker(StringRedisTemplate stringRedisTemplate,
+                         @Value("${hmdp.id.segment-size:1000}") int segmentSize,
+                         @Value("${hmdp.id.prefetch-ratio:0.8}") double prefetchRatio) {
         this.stringRedisTemplate = stringRedisTemplate;
+        this.segmentSize = segmentSize;
+        this.prefetchRatio = prefetchRatio;
+    }
+
+    /**
+     * 一段连续的序列号 [start, end]
+     */
+    private static class Segment {
+        // 号段所属的日期（秒数 / 86400）
+        private final long day;
+        private final long end;
+        // 发放到这个号码时预取下一段
+        private final long prefetchAt;
+        private final AtomicLong cursor;
+
+        Segment(long day, long start, long end, long prefetchAt) {
+            this.day = day;
+            this.end = end;
+            this.prefetchAt = prefetchAt;
+            this.cursor = new AtomicLong(start);
+        }
+    }
+
+    /**
+     * 每个业务前缀的双号段缓冲：正在发放的号段 + 预取中的下一段
+     */
+    private static class SegmentBuffer {
+        private final String keyPrefix;
+        private volatile Segment current;
+        private volatile CompletableFuture<Segment> next;
+
+        SegmentBuffer(String keyPrefix) {
+            this.keyPrefix = keyPrefix;
+        }
+    }
+
+    @PreDestroy
+    private void destroy() {
+        prefetchExecutor.shutdownNow();
     }
 
     public long nextId(String keyPrefix) {
+        // 启用了本地生成的业务前缀不访问Redis，本地生成暂停时才使用Redis序列号
+        if (snowflakeIdWorker != null && snowflakeIdWorker.supports(keyPrefix)) {
+            long id = snowflakeIdWorker.tryNextId();
+            if (id >= 0) {
+                return id;
+            }
+        }
+        if (segmentSize <= 0) {
+            return nextIdPerCall(keyPrefix);
+        }
+        // 1.生成时间戳
+        long nowSecond = LocalDateTime.now().toEpochSecond(ZoneOffset.UTC);
+        long timestamp = nowSecond - BEGIN_TIMESTAMP;
+        long day = nowSecond / SECONDS_PER_DAY;
+        // 2.从本地号段取序列号
+        SegmentBuffer buffer = buffers.computeIfAbsent(keyPrefix, SegmentBuffer::new);
+        while (true) {
+            Segment segment = buffer.current;
+            if (segment != null && segment.day == day) {
+                long count = segment.cursor.getAndIncrement();
+                if (count <= segment.end) {
+                    // 只有取到预取点的线程会触发预取
+                    if (count == segment.prefetchAt) {
+                        prefetch(buffer, day);
+                    }
+                    // 3.拼接返回
+                    return timestamp << COUNT_BITS | count;
+                }
+            }
+            // 号段用完或者跨天，切换到下一段
+            switchSegment(buffer, segment, day);
+        }
+    }
+
+    /**
+     * 每次生成ID都访问Redis，号段大小为0时使用
+     */
+    public long nextIdPerCall(String keyPrefix) {
         // 1.生成时间戳
         LocalDateTime now = LocalDateTime.now();
         long nowSecond = now.toEpochSecond(ZoneOffset.UTC);
         long timestamp = nowSecond - BEGIN_TIMESTAMP;
+
         // 2.生成序列号
         // 获取日期
         // 自增长
-        String date = now.format(DateTimeFormatter.ofPattern("yyyy:MM:dd"));
+        String date = now.format(DATE_FORMATTER);
         long count = stringRedisTemplate.opsForValue().increment("icr:" + keyPrefix + ":" + date);
 
         // 3.拼接返回
         return timestamp << COUNT_BITS | count;
     }
+
+    private void prefetch(SegmentBuffer buffer, long day) {
+        buffer.next = CompletableFuture.supplyAsync(() -> allocate(buffer.keyPrefix, day), prefetchExecutor);
+    }
+
+    private void switchSegment(SegmentBuffer buffer, Segment exhausted, long day) {
+        synchronized (buffer) {
+            // 其他线程已经切换过
+            if (buffer.current != exhausted) {
+                return;
+            }
+            // 1.优先使用预取的号段，预取失败或者已经跨天时同步申请
+            Segment segment = null;
+            CompletableFuture<Segment> next = buffer.next;
+            buffer.next = null;
+            if (next != null) {
+                try {
+                    segment = next.get();
+                } catch (Exception e) {
+                    log.warn("预取号段失败，改为同步申请，keyPrefix={}", buffer.keyPrefix, e);
+                }
+            }
+            if (segment == null || segment.day != day) {
+                segment = allocate(buffer.keyPrefix, day);
+            }
+            // 2.切换，切换后再发放
+            buffer.current = segment;
+        }
+    }
+
+    private Segment allocate(String keyPrefix, long day) {
+        // 与逐个生成使用同一个key，两种模式可以混用
+        String date = LocalDate.ofEpochDay(day).format(DATE_FORMATTER);
+        Long end = stringRedisTemplate.opsForValue().increment("icr:" + keyPrefix + ":" + date, segmentSize);
+        if (end == null) {
+            throw new IllegalStateException("申请号段失败，keyPrefix=" + keyPrefix);
+        }
+        long start = end - segmentSize + 1;
+        long prefetchAt = start + Math.min(segmentSize - 1, (long) (segmentSize * prefetchRatio));
+        return new Segment(day, start, end, prefetchAt);
+    }
 //    public static void main(String[] args){
 //        LocalDateTime t = LocalDateTime.of(2024, 6, 16, 0, 0, 0);
 //        long second = t.toEpochSecond(ZoneOffset.UTC);
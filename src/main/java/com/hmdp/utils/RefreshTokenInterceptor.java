@@ -4,14 +4,14 @@ import cn.hutool.core.bean.BeanUtil;
 import cn.hutool.core.util.StrUtil;
 import com.hmdp.dto.UserDTO;
 import org.springframework.data.redis.core.StringRedisTemplate;
-import org.springframework.web.servlet.HandlerInterceptor;
+import org.springframework.web.servlet.AsyncHandlerInterceptor;
 
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import java.util.Map;
 import java.util.concurrent.TimeUnit;
 
-public class RefreshTokenInterceptor implements HandlerInterceptor {
+public class RefreshTokenInterceptor implements AsyncHandlerInterceptor {
 
     private StringRedisTemplate stringRedisTemplate;
 
@@ -49,4 +49,10 @@ public class RefreshTokenInterceptor implements HandlerInterceptor {
         // 移除用户，防止内存泄漏
         UserHolder.removeUser();
     }
+
+    @Override
+    public void afterConcurrentHandlingStarted(HttpServletRequest request, HttpServletResponse response, Object handler) throws Exception {
+        // 异步请求挂起后不会回调afterCompletion，当前线程归还容器前移除用户
+        UserHolder.removeUser();
+    }
 }
@@ -0,0 +1,102 @@
+package com.hmdp.utils;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.connection.stream.PendingMessagesSummary;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import java.util.concurrent.TimeUnit;
+
+import static com.hmdp.utils.RedisConstants.SECKILL_PARTITIONS;
+import static com.hmdp.utils.RedisConstants.SECKILL_STREAM_GROUP;
+
+/**
+ * 秒杀准入控制：在执行秒杀脚本之前按优惠券限流，并在订单积压过多时直接拒绝，
+ * 被拒绝的请求不会扣减Redis库存，客户端稍后重试即可
+ */
+@Slf4j
+@Component
+public class SeckillAdmission {
+
+    public static final int ADMITTED = 0;
+    public static final int RATE_LIMITED = 1;
+    public static final int OVERLOADED = 2;
+
+    // 每张优惠券在本节点每秒放行的请求数
+    @Value("${hmdp.seckill.admission.rate:2000}")
+    private double rate;
+    // 令牌桶容量，即允许的突发请求数
+    @Value("${hmdp.seckill.admission.burst:500}")
+    private long burst;
+    // 待落库订单数上限（消费者组未确认数），超过后拒绝新的秒杀请求
+    @Value("${hmdp.seckill.admission.max-backlog:10000}")
+    private long maxBacklog;
+
+    // 令牌桶最多保留的优惠券数，以及空闲多久（毫秒）后丢弃，丢弃后重新创建的桶是满的
+    @Value("${hmdp.seckill.admission.max-vouchers:10000}")
+    private long maxVouchers;
+    @Value("${hmdp.seckill.admission.bucket-idle:60000}")
+    private long bucketIdle;
+
+    private Cache<Long, TokenBucket> buckets;
+
+    // 消费者组中已读取未确认的订单数，各节点下单通道中排队和等待重试的订单都在其中，
+    // 不再另加本节点的排队数；定时刷新，避免每个请求都查询Redis
+    private volatile long streamPending;
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private SeckillMetrics seckillMetrics;
+
+    @PostConstruct
+    private void init() {
+        buckets = Caffeine.newBuilder()
+                .maximumSize(maxVouchers)
+                .expireAfterAccess(bucketIdle, TimeUnit.MILLISECONDS)
+                .build();
+    }
+
+    /**
+     * 判断是否放行本次秒杀请求
+     * @param voucherId 优惠券id
+     * @return ADMITTED、RATE_LIMITED 或 OVERLOADED
+     */
+    public int tryAdmit(Long voucherId) {
+        // 1.订单积压过多，说明落库跟不上，拒绝新请求
+        if (streamPending > maxBacklog) {
+            seckillMetrics.increment("admissionOverloaded");
+            return OVERLOADED;
+        }
+        // 2.按优惠券限流
+        TokenBucket bucket = buckets.get(voucherId, id -> new TokenBucket(rate, burst));
+        if (!bucket.tryAcquire()) {
+            seckillMetrics.increment("admissionRateLimited");
+            return RATE_LIMITED;
+        }
+        return ADMITTED;
+    }
+
+    @Scheduled(fixedDelayString = "${hmdp.seckill.admission.refresh-interval:500}")
+    public void refreshStreamPending() {
+        // 累加各分区消息队列的未确认数
+        long pending = 0;
+        for (int p = 0; p < SECKILL_PARTITIONS; p++) {
+            try {
+                PendingMessagesSummary summary = stringRedisTemplate.opsForStream().pending(SeckillKeys.streamKey(p), SECKILL_STREAM_GROUP);
+                pending += summary == null ? 0 : summary.getTotalPendingMessages();
+            } catch (Exception e) {
+                // 消费者组尚未创建等情况，按没有积压处理
+                log.debug("查询订单积压失败: {}", e.getMessage());
+            }
+        }
+        streamPending = pending;
+    }
+}
@@ -0,0 +1,190 @@
+package com.hmdp.utils;
+
+import com.hmdp.entity.SeckillVoucher;
+import com.hmdp.service.ISeckillVoucherService;
+import lombok.extern.slf4j.Slf4j;
+import org.redisson.api.RLock;
+import org.redisson.api.RedissonClient;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.core.Cursor;
+import org.springframework.data.redis.core.ScanOptions;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.time.LocalDateTime;
+import java.util.*;
+import java.util.zip.GZIPOutputStream;
+
+import static com.hmdp.utils.RedisConstants.SECKILL_VOUCHER_LOCK_KEY;
+
+/**
+ * 秒杀结束后的Redis状态归档：秒杀券结束超过一段时间、且Redis与数据库已经对平后，
+ * 用SSCAN把已下单用户集合导出到压缩文件，再删除该券在Redis中的库存、用户集合和元数据，
+ * 每轮回收的内存通过 /admin/voucher-order/metrics 的 lastArchive 查看。
+ * <p>
+ * 各节点都会运行归档任务，每张券归档时持有秒杀券订单锁，获取锁后重新确认Redis中的数据还在，
+ * 同一张券只会被一个节点导出和删除
+ */
+@Slf4j
+@Component
+public class SeckillArchiver {
+
+    private static final DefaultRedisScript<Long> ARCHIVE_SCRIPT;
+    static {
+        ARCHIVE_SCRIPT = new DefaultRedisScript<>();
+        ARCHIVE_SCRIPT.setLocation(new ClassPathResource("seckill_archive.lua"));
+        ARCHIVE_SCRIPT.setResultType(Long.class);
+    }
+
+    // 秒杀结束后等待的时长（分钟），需要大于支付超时时间，让超时取消先归还库存
+    @Value("${hmdp.seckill.archive.grace-minutes:60}")
+    private long graceMinutes;
+    // 只检查最近结束的秒杀券（天），更早的券已经归档过
+    @Value("${hmdp.seckill.archive.lookback-days:30}")
+    private long lookbackDays;
+    // 每轮最多归档的秒杀券数
+    @Value("${hmdp.seckill.archive.batch:20}")
+    private int batch;
+    // 归档文件目录
+    @Value("${hmdp.seckill.archive.dir:data/archive}")
+    private String dir;
+    // SSCAN每页大小
+    @Value("${hmdp.seckill.archive.page-size:1000}")
+    private int pageSize;
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private ISeckillVoucherService seckillVoucherService;
+
+    @Resource
+    private SeckillStockReconciler seckillStockReconciler;
+
+    @Resource
+    private SeckillMetrics seckillMetrics;
+
+    @Resource
+    private RedissonClient redissonClient;
+
+    private volatile Map<String, Object> lastArchive = Collections.emptyMap();
+
+    @PostConstruct
+    private void init() {
+        seckillMetrics.gauge("lastArchive", () -> lastArchive);
+    }
+
+    @Scheduled(fixedDelayString = "${hmdp.seckill.archive.interval:600000}",
+            initialDelayString = "${hmdp.seckill.archive.interval:600000}")
+    public void archive() {
+        // 1.查询已经结束的秒杀券
+        LocalDateTime now = LocalDateTime.now();
+        List<SeckillVoucher> vouchers = seckillVoucherService.query()
+                .lt("end_time", now.minusMinutes(graceMinutes))
+                .gt("end_time", now.minusDays(lookbackDays))
+                .orderByAsc("end_time")
+                .list();
+        int archived = 0;
+        long reclaimed = 0;
+        for (SeckillVoucher voucher : vouchers) {
+            if (archived >= batch) {
+                break;
+            }
+            Long voucherId = voucher.getVoucherId();
+            // 2.Redis中已经没有该券的数据，说明归档过
+            if (!hasState(voucherId)) {
+                continue;
+            }
+            // 3.其他节点正在归档或者修复该券，跳过
+            RLock lock = redissonClient.getLock(SECKILL_VOUCHER_LOCK_KEY + voucherId);
+            if (!lock.tryLock()) {
+                continue;
+            }
+            try {
+                // 3.1.获取锁后重新确认，其他节点可能刚归档完
+                if (!hasState(voucherId)) {
+                    continue;
+                }
+                // 3.2.还没对平的券先不归档，等对账修复
+                if (!seckillStockReconciler.isReconciled(voucher)) {
+                    log.warn("秒杀券库存未对平，暂不归档，voucherId={}", voucherId);
+                    continue;
+                }
+                reclaimed += archive(voucherId);
+                archived++;
+            } catch (Exception e) {
+                log.error("归档秒杀券失败，voucherId={}", voucherId, e);
+            } finally {
+                lock.unlock();
+            }
+        }
+        if (archived == 0) {
+            return;
+        }
+        // 4.记录本轮回收的内存
+        Map<String, Object> run = new LinkedHashMap<>();
+        run.put("time", now.toString());
+        run.put("vouchers", archived);
+        run.put("reclaimedBytes", reclaimed);
+        lastArchive = run;
+        log.info("归档秒杀券{}张，回收内存{}字节", archived, reclaimed);
+    }
+
+    private boolean hasState(Long voucherId) {
+        Long n = stringRedisTemplate.countExistingKeys(Arrays.asList(
+                SeckillKeys.stockKey(voucherId), SeckillKeys.shardsKey(voucherId), SeckillKeys.orderKey(voucherId)));
+        return n != null && n > 0;
+    }
+
+    private long archive(Long voucherId) throws IOException {
+        // 1.SSCAN导出已下单用户，先写临时文件，写完再改名，避免留下不完整的归档
+        File directory = new File(dir);
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("无法创建归档目录: " + directory.getAbsolutePath());
+        }
+        File file = new File(directory, "seckill-order-" + voucherId + ".txt.gz");
+        File tmp = new File(directory, file.getName() + ".tmp");
+        long users = 0;
+        try (FileOutputStream out = new FileOutputStream(tmp);
+             GZIPOutputStream gzip = new GZIPOutputStream(out);
+             Writer writer = new BufferedWriter(new OutputStreamWriter(gzip, StandardCharsets.UTF_8));
+             Cursor<String> scan = stringRedisTemplate.opsForSet().scan(SeckillKeys.orderKey(voucherId),
+                     ScanOptions.scanOptions().count(pageSize).build())) {
+            while (scan.hasNext()) {
+                writer.write(scan.next());
+                writer.write('\n');
+                users++;
+            }
+            writer.flush();
+            gzip.finish();
+            out.getFD().sync();
+        }
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        // 2.统计内存后删除Redis中的key，分片库存key按分片数生成后传入
+        List<String> keys = new ArrayList<>();
+        keys.add(SeckillKeys.shardedKey(SeckillKeys.partition(voucherId)));
+        keys.add(SeckillKeys.stockKey(voucherId));
+        keys.add(SeckillKeys.shardsKey(voucherId));
+        keys.add(SeckillKeys.orderKey(voucherId));
+        keys.add(SeckillKeys.metaKey(voucherId));
+        String shards = stringRedisTemplate.opsForValue().get(SeckillKeys.shardsKey(voucherId));
+        if (shards != null && Integer.parseInt(shards) > 1) {
+            keys.addAll(SeckillKeys.stockKeys(voucherId, Integer.parseInt(shards)));
+        }
+        Long bytes = stringRedisTemplate.execute(ARCHIVE_SCRIPT, keys, voucherId.toString());
+        long reclaimed = bytes == null ? 0 : bytes;
+        seckillMetrics.increment("archivedVouchers");
+        seckillMetrics.increment("archivedBytes", reclaimed);
+        log.info("归档秒杀券{}：用户{}个，回收内存{}字节，文件{}", voucherId, users, reclaimed, file.getAbsolutePath());
+        return reclaimed;
+    }
+}
@@ -0,0 +1,193 @@
+package com.hmdp.utils;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.*;
+
+/**
+ * 秒杀请求合并：同一张券在一个很短的时间窗口内到达的请求合并成一次秒杀脚本调用，
+ * 脚本按顺序逐个判断并返回每个用户的结果，Redis命令数按批量大小成倍减少
+ */
+@Slf4j
+@Component
+public class SeckillBatcher {
+
+    private static final DefaultRedisScript<List> SECKILL_SCRIPT;
+    static {
+        SECKILL_SCRIPT = new DefaultRedisScript<>();
+        SECKILL_SCRIPT.setLocation(new ClassPathResource("seckill.lua"));
+        SECKILL_SCRIPT.setResultType(List.class);
+    }
+
+    // 合并窗口（微秒），为0时每个请求单独执行脚本
+    @Value("${hmdp.seckill.coalesce.window-micros:1000}")
+    private long windowMicros;
+    // 单批最多合并的请求数，达到后立即执行
+    @Value("${hmdp.seckill.coalesce.max-batch:200}")
+    private int maxBatch;
+    // 执行合并后脚本的线程数
+    @Value("${hmdp.seckill.coalesce.threads:4}")
+    private int threads;
+    // 订单支付超时时间（毫秒），由脚本在受理订单时登记
+    @Value("${hmdp.seckill.pay-timeout:900000}")
+    private long payTimeout;
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private SeckillMetrics seckillMetrics;
+
+    @Resource
+    private SeckillVoucherPreloader seckillVoucherPreloader;
+
+    private ScheduledExecutorService scheduler;
+
+    // voucherId -> 正在收集请求的批次
+    private final Map<Long, Batch> openBatches = new ConcurrentHashMap<>();
+
+    private static class Request {
+        private final Long userId;
+        private final long orderId;
+        private final CompletableFuture<Integer> future = new CompletableFuture<>();
+
+        Request(Long userId, long orderId) {
+            this.userId = userId;
+            this.orderId = orderId;
+        }
+    }
+
+    private static class Batch {
+        private final List<Request> requests = new ArrayList<>();
+        private boolean flushed;
+    }
+
+    @PostConstruct
+    private void init() {
+        scheduler = Executors.newScheduledThreadPool(Math.max(1, threads));
+    }
+
+    @PreDestroy
+    private void destroy() {
+        scheduler.shutdown();
+    }
+
+    /**
+     * 提交一次秒杀请求，等待所在批次执行完毕
+     * @return 0成功 1库存不足 2重复下单 3尚未开始 4已经结束 5库存分片数变化（重新加载后仍不一致）
+     */
+    public int seckill(Long voucherId, Long userId, long orderId) {
+        Request request = new Request(userId, orderId);
+        if (windowMicros <= 0) {
+            execute(voucherId, Collections.singletonList(request));
+        } else {
+            enqueue(voucherId, request);
+        }
+        try {
+            return request.future.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw e;
+        }
+    }
+
+    private void enqueue(Long voucherId, Request request) {
+        while (true) {
+            // 1.获取当前正在收集的批次，没有则新建并在窗口结束时执行
+            Batch batch = openBatches.computeIfAbsent(voucherId, id -> {
+                Batch b = new Batch();
+                scheduler.schedule(() -> flush(id, b), windowMicros, TimeUnit.MICROSECONDS);
+                return b;
+            });
+            boolean full;
+            synchronized (batch) {
+                // 2.批次已经执行，重新获取
+                if (batch.flushed) {
+                    continue;
+                }
+                batch.requests.add(request);
+                full = batch.requests.size() >= maxBatch;
+            }
+            // 3.达到批量上限，当前线程立即执行
+            if (full) {
+                flush(voucherId, batch);
+            }
+            return;
+        }
+    }
+
+    private void flush(Long voucherId, Batch batch) {
+        synchronized (batch) {
+            if (batch.flushed) {
+                return;
+            }
+            batch.flushed = true;
+        }
+        openBatches.remove(voucherId, batch);
+        execute(voucherId, batch.requests);
+    }
+
+    private void execute(Long voucherId, List<Request> requests) {
+        if (requests.isEmpty()) {
+            return;
+        }
+        try {
+            // 参数：voucherId, payTimeout, userId1, orderId1, userId2, orderId2 ...
+            String[] args = new String[requests.size() * 2 + 2];
+            args[0] = voucherId.toString();
+            args[1] = String.valueOf(payTimeout);
+            for (int i = 0; i < requests.size(); i++) {
+                args[i * 2 + 2] = requests.get(i).userId.toString();
+                args[i * 2 + 3] = String.valueOf(requests.get(i).orderId);
+            }
+            List<?> results = executeScript(voucherId, args);
+            // 分片数与本地缓存不一致，重新加载后再执行一次
+            if (((Number) results.get(0)).intValue() == 5) {
+                seckillVoucherPreloader.evict(voucherId);
+                results = executeScript(voucherId, args);
+            }
+            seckillMetrics.increment("seckillScriptRequests", requests.size());
+            for (int i = 0; i < requests.size(); i++) {
+                requests.get(i).future.complete(((Number) results.get(i)).intValue());
+            }
+        } catch (Exception e) {
+            log.error("执行秒杀脚本失败，voucherId={}", voucherId, e);
+            for (Request request : requests) {
+                request.future.completeExceptionally(e);
+            }
+        }
+    }
+
+    private List<?> executeScript(Long voucherId, String[] args) {
+        // 脚本访问的key全部通过KEYS传入，带有相同的hash tag，分片库存key按本地缓存的分片数生成
+        int partition = SeckillKeys.partition(voucherId);
+        int shards = seckillVoucherPreloader.getMeta(voucherId).getShards();
+        List<String> keys = new ArrayList<>(6 + shards);
+        keys.add(SeckillKeys.stockKey(voucherId));
+        keys.add(SeckillKeys.orderKey(voucherId));
+        keys.add(SeckillKeys.shardsKey(voucherId));
+        keys.add(SeckillKeys.metaKey(voucherId));
+        keys.add(SeckillKeys.streamKey(partition));
+        keys.add(SeckillKeys.payTimeoutKey(partition));
+        if (shards > 1) {
+            keys.addAll(SeckillKeys.stockKeys(voucherId, shards));
+        }
+        List<?> results = stringRedisTemplate.execute(SECKILL_SCRIPT, keys, (Object[]) args);
+        seckillMetrics.increment("seckillScriptCalls");
+        return results;
+    }
+}
@@ -0,0 +1,76 @@
+package com.hmdp.utils;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static com.hmdp.utils.RedisConstants.*;
+
+/**
+ * 秒杀相关的Redis key，格式为 前缀{分区}:优惠券id，分区 = 优惠券id % SECKILL_PARTITIONS。
+ * 同一张券的库存、分片库存、已下单用户、元数据，以及所在分区的消息队列、支付超时队列带有相同的hash tag，
+ * 秒杀脚本访问的key都在同一个slot，可以在Redis Cluster中执行，不同分区的券分散到不同节点
+ */
+public class SeckillKeys {
+
+    private SeckillKeys() {
+    }
+
+    public static int partition(Long voucherId) {
+        return (int) Math.floorMod(voucherId, (long) SECKILL_PARTITIONS);
+    }
+
+    private static String tag(int partition) {
+        return "{" + partition + "}";
+    }
+
+    public static String stockKey(Long voucherId) {
+        return SECKILL_STOCK_KEY + tag(partition(voucherId)) + ":" + voucherId;
+    }
+
+    public static String stockShardKey(Long voucherId, int shard) {
+        return stockKey(voucherId) + ":" + shard;
+    }
+
+    /**
+     * 脚本需要访问的库存key：不分片时为库存key，分片时为各分片库存key
+     */
+    public static List<String> stockKeys(Long voucherId, int shards) {
+        if (shards <= 1) {
+            return Collections.singletonList(stockKey(voucherId));
+        }
+        List<String> keys = new ArrayList<>(shards);
+        for (int i = 0; i < shards; i++) {
+            keys.add(stockShardKey(voucherId, i));
+        }
+        return keys;
+    }
+
+    public static String orderKey(Long voucherId) {
+        return SECKILL_ORDER_KEY + tag(partition(voucherId)) + ":" + voucherId;
+    }
+
+    public static String shardsKey(Long voucherId) {
+        return SECKILL_SHARDS_KEY + tag(partition(voucherId)) + ":" + voucherId;
+    }
+
+    public static String metaKey(Long voucherId) {
+        return SECKILL_META_KEY + tag(partition(voucherId)) + ":" + voucherId;
+    }
+
+    public static String shardedKey(int partition) {
+        return SECKILL_SHARDED_KEY + ":" + tag(partition);
+    }
+
+    public static String streamKey(int partition) {
+        return SECKILL_STREAM_KEY + ":" + tag(partition);
+    }
+
+    public static String payTimeoutKey(int partition) {
+        return SECKILL_PAY_TIMEOUT_KEY + ":" + tag(partition);
+    }
+
+    public static String payMissingKey(int partition) {
+        return SECKILL_PAY_MISSING_KEY + ":" + tag(partition);
+    }
+}
@@ -0,0 +1,125 @@
+package com.hmdp.utils;
+
+import org.springframework.stereotype.Component;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * 秒杀下单链路的运行指标，供 /admin/voucher-order/metrics 查看
+ */
+@Component
+public class SeckillMetrics {
+
+    // 批次大小分布的上界：1、2~10、11~50、51~100、101~500、>500
+    private static final int[] BATCH_BUCKETS = {1, 10, 50, 100, 500};
+    // 落库速率按最近多少秒计算
+    private static final int RATE_WINDOW_SECONDS = 10;
+
+    private final long startMillis = System.currentTimeMillis();
+
+    private final LongAdder batches = new LongAdder();
+    private final LongAdder persistedOrders = new LongAdder();
+    private final LongAccumulator maxBatchSize = new LongAccumulator(Long::max, 0);
+    private final AtomicLong lastBatchSize = new AtomicLong();
+    private final LongAdder[] batchHistogram = new LongAdder[BATCH_BUCKETS.length + 1];
+    // 每秒落库订单数的环形窗口，多留一格给正在进行的这一秒
+    private final long[] rateSeconds = new long[RATE_WINDOW_SECONDS + 1];
+    private final long[] rateOrders = new long[RATE_WINDOW_SECONDS + 1];
+    // 按名称累加的计数器，如被拒绝的请求数
+    private final Map<String, LongAdder> counters = new ConcurrentSkipListMap<>();
+    // 实时读取的指标，如队列深度
+    private final Map<String, Supplier<Object>> gauges = new ConcurrentSkipListMap<>();
+
+    public SeckillMetrics() {
+        for (int i = 0; i < batchHistogram.length; i++) {
+            batchHistogram[i] = new LongAdder();
+        }
+    }
+
+    /**
+     * 记录一次批量落库
+     * @param size 本批写入的订单数
+     */
+    public void recordBatch(int size) {
+        batches.increment();
+        persistedOrders.add(size);
+        maxBatchSize.accumulate(size);
+        lastBatchSize.set(size);
+        int i = 0;
+        while (i < BATCH_BUCKETS.length && size > BATCH_BUCKETS[i]) {
+            i++;
+        }
+        batchHistogram[i].increment();
+        recordRate(size);
+    }
+
+    private synchronized void recordRate(int size) {
+        long second = System.currentTimeMillis() / 1000;
+        int i = (int) (second % rateSeconds.length);
+        if (rateSeconds[i] != second) {
+            rateSeconds[i] = second;
+            rateOrders[i] = 0;
+        }
+        rateOrders[i] += size;
+    }
+
+    /**
+     * 最近RATE_WINDOW_SECONDS个完整秒的平均落库速率，启动不足窗口时按已运行的秒数计算
+     */
+    private synchronized long ordersPerSecond() {
+        long now = System.currentTimeMillis();
+        long current = now / 1000;
+        long sum = 0;
+        for (int i = 0; i < rateSeconds.length; i++) {
+            if (rateSeconds[i] < current && rateSeconds[i] >= current - RATE_WINDOW_SECONDS) {
+                sum += rateOrders[i];
+            }
+        }
+        long seconds = Math.max(1, Math.min(RATE_WINDOW_SECONDS, current - startMillis / 1000));
+        return sum / seconds;
+    }
+
+    public void increment(String name) {
+        increment(name, 1);
+    }
+
+    public void increment(String name, long n) {
+        counters.computeIfAbsent(name, k -> new LongAdder()).add(n);
+    }
+
+    /**
+     * 注册一个实时读取的指标
+     */
+    public void gauge(String name, Supplier<Object> supplier) {
+        gauges.put(name, supplier);
+    }
+
+    public Map<String, Object> snapshot() {
+        Map<String, Object> map = new LinkedHashMap<>();
+        long b = batches.sum();
+        long orders = persistedOrders.sum();
+        map.put("batches", b);
+        map.put("persistedOrders", orders);
+        map.put("ordersPerSecond", ordersPerSecond());
+        map.put("avgBatchSize", b == 0 ? 0 : (double) orders / b);
+        map.put("maxBatchSize", maxBatchSize.get());
+        map.put("lastBatchSize", lastBatchSize.get());
+        Map<String, Long> histogram = new LinkedHashMap<>();
+        int lower = 1;
+        for (int i = 0; i < BATCH_BUCKETS.length; i++) {
+            histogram.put(lower == BATCH_BUCKETS[i] ? String.valueOf(lower) : lower + "-" + BATCH_BUCKETS[i], batchHistogram[i].sum());
+            lower = BATCH_BUCKETS[i] + 1;
+        }
+        histogram.put(">" + BATCH_BUCKETS[BATCH_BUCKETS.length - 1], batchHistogram[BATCH_BUCKETS.length].sum());
+        map.put("batchSizeHistogram", histogram);
+        counters.forEach((name, counter) -> map.put(name, counter.sum()));
+        gauges.forEach((name, supplier) -> map.put(name, supplier.get()));
+        return map;
+    }
+}
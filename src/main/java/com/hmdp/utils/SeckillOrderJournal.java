@@ -0,0 +1,440 @@
+package com.hmdp.utils;
+
+import com.hmdp.entity.VoucherOrder;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.connection.Message;
+import org.springframework.data.redis.connection.MessageListener;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+import static com.hmdp.utils.RedisConstants.SECKILL_JOURNAL_DONE_CHANNEL;
+
+/**
+ * 秒杀订单本地日志：lua脚本受理成功后、返回用户之前把订单追加到内存映射文件，订单落库后再打上完成标记。
+ * 进程崩溃时页缓存中的数据由操作系统写回磁盘，重启时把未完成的订单重新落库（落库是幂等的），
+ * 即使Redis丢失了消息队列中的数据，已受理的订单也不会丢。
+ * <p>
+ * 订单可能由其他节点落库：落库的节点把不在自己日志中的订单id广播出去，受理的节点收到后标记完成；
+ * 广播丢失时由定时整理兜底，已在数据库中的订单标记完成，长时间未落库的订单按重放的方式重新落库。
+ * <p>
+ * 文件按段滚动，每段固定大小，段内的订单全部完成后删除该段。
+ * 每个节点独占一个日志目录（启动时加文件锁），不会重放、删除其他节点的日志。
+ * 每条记录32字节：状态(1) + 保留(7) + 订单id(8) + 用户id(8) + 优惠券id(8)
+ */
+@Slf4j
+@Component
+public class SeckillOrderJournal implements MessageListener {
+
+    private static final int RECORD_SIZE = 32;
+    private static final byte PENDING = 1;
+    private static final byte DONE = 2;
+    private static final String SEGMENT_SUFFIX = ".journal";
+    private static final String LOCK_FILE = "journal.lock";
+    // 提前完成的订单保留时间（毫秒），超过后认为是其他节点受理的订单
+    private static final long EARLY_DONE_TTL = 60000L;
+    private static final int EARLY_DONE_PRUNE_SIZE = 10000;
+    // 整理时每次查询数据库的订单数
+    private static final int COMPACT_BATCH = 500;
+
+    @Value("${hmdp.seckill.journal.enabled:true}")
+    private boolean enabled;
+    // 日志目录，每个节点独占，默认按端口区分同一工作目录下启动的多个节点
+    @Value("${hmdp.seckill.journal.dir:data/journal/${server.port:8081}}")
+    private String dir;
+    // 每段大小（字节）
+    @Value("${hmdp.seckill.journal.segment-size:67108864}")
+    private int segmentSize;
+    // 每次追加后是否强制刷盘，开启后可以防止机器断电丢数据，但每次写入耗时上升到毫秒级
+    @Value("${hmdp.seckill.journal.force:false}")
+    private boolean force;
+    // 追加超过该时长（毫秒）仍未完成的订单，整理时到数据库中确认
+    @Value("${hmdp.seckill.journal.compact-age:30000}")
+    private long compactAge;
+    // 追加超过该时长（毫秒）仍未落库的订单，认为消息已经丢失，整理时重新落库
+    @Value("${hmdp.seckill.journal.redrive-age:600000}")
+    private long redriveAge;
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private RedisMessageListenerContainer redisMessageListenerContainer;
+
+    private File directory;
+    // 日志目录的文件锁，进程退出时由操作系统释放
+    private FileChannel lockChannel;
+    private FileLock lock;
+    private volatile Segment current;
+    // 段序号 -> 段
+    private final Map<Long, Segment> segments = new ConcurrentHashMap<>();
+    // 订单id -> 未完成记录的位置
+    private final Map<Long, Position> positions = new ConcurrentHashMap<>();
+    // 订单id -> 完成时间：脚本已把订单发到消息队列，追加日志前订单就已经落库的情况
+    private final Map<Long, Long> earlyDone = new ConcurrentHashMap<>();
+
+    private static class Segment {
+        private final long seq;
+        private final File file;
+        private final MappedByteBuffer buffer;
+        // 下一条记录的偏移
+        private final AtomicInteger next = new AtomicInteger();
+        // 未完成的订单数
+        private final AtomicInteger pending = new AtomicInteger();
+        private volatile boolean sealed;
+
+        Segment(long seq, File file, MappedByteBuffer buffer) {
+            this.seq = seq;
+            this.file = file;
+            this.buffer = buffer;
+        }
+    }
+
+    private static class Position {
+        // 段序号 << 32 | 段内偏移
+        private final long value;
+        private final long appendedAt;
+
+        Position(long value, long appendedAt) {
+            this.value = value;
+            this.appendedAt = appendedAt;
+        }
+    }
+
+    @PostConstruct
+    private void init() throws IOException {
+        if (!enabled) {
+            return;
+        }
+        redisMessageListenerContainer.addMessageListener(this, new ChannelTopic(SECKILL_JOURNAL_DONE_CHANNEL));
+        directory = new File(dir);
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("无法创建订单日志目录: " + directory.getAbsolutePath());
+        }
+        // 独占日志目录，避免多个节点互相重放、删除对方的日志
+        lockChannel = new RandomAccessFile(new File(directory, LOCK_FILE), "rw").getChannel();
+        try {
+            lock = lockChannel.tryLock();
+        } catch (OverlappingFileLockException e) {
+            lock = null;
+        }
+        if (lock == null) {
+            lockChannel.close();
+            throw new IllegalStateException("订单日志目录已被其他节点占用: " + directory.getAbsolutePath());
+        }
+        // 新段的序号排在已有段之后，已有段等待replay处理
+        long seq = 0;
+        for (File file : listSegments()) {
+            seq = Math.max(seq, seqOf(file) + 1);
+        }
+        current = openSegment(seq);
+    }
+
+    @PreDestroy
+    private void destroy() throws IOException {
+        for (Segment segment : segments.values()) {
+            segment.buffer.force();
+        }
+        if (lock != null) {
+            lock.release();
+            lockChannel.close();
+        }
+    }
+
+    /**
+     * 追加一条已受理的订单
+     */
+    public void append(VoucherOrder order) {
+        if (!enabled) {
+            return;
+        }
+        while (true) {
+            Segment segment = current;
+            // 1.在当前段中占一个位置，段已满则滚动到下一段
+            // 占位前先计入未完成数，滚动时看到0就说明没有正在写入的记录，可以删除
+            segment.pending.incrementAndGet();
+            int offset = segment.next.getAndAdd(RECORD_SIZE);
+            if (offset + RECORD_SIZE > segmentSize) {
+                release(segment);
+                roll(segment);
+                continue;
+            }
+            // 2.先写数据再写状态，状态为PENDING的记录才是完整的
+            MappedByteBuffer buffer = segment.buffer;
+            buffer.putLong(offset + 8, order.getId());
+            buffer.putLong(offset + 16, order.getUserId());
+            buffer.putLong(offset + 24, order.getVoucherId());
+            buffer.put(offset, PENDING);
+            positions.put(order.getId(), new Position(segment.seq << 32 | offset, System.currentTimeMillis()));
+            if (force) {
+                buffer.force();
+            }
+            // 3.订单在追加期间已经落库，直接标记完成
+            if (earlyDone.remove(order.getId()) != null) {
+                checkpointLocal(order.getId());
+            }
+            return;
+        }
+    }
+
+    /**
+     * 订单已落库（或已确定失败），打上完成标记
+     */
+    public void checkpoint(Long orderId) {
+        checkpoint(Collections.singletonList(orderId));
+    }
+
+    /**
+     * 一批订单已落库（或已确定失败），打上完成标记，不在本节点日志中的订单id广播给其他节点
+     */
+    public void checkpoint(Collection<Long> orderIds) {
+        if (!enabled) {
+            return;
+        }
+        List<Long> remote = new ArrayList<>();
+        for (Long orderId : orderIds) {
+            if (!checkpointLocal(orderId)) {
+                // 其他节点受理的订单，或者本节点还没来得及追加的订单
+                remote.add(orderId);
+                markEarlyDone(orderId);
+            }
+        }
+        if (remote.isEmpty()) {
+            return;
+        }
+        try {
+            String body = remote.stream().map(String::valueOf).collect(Collectors.joining(","));
+            stringRedisTemplate.convertAndSend(SECKILL_JOURNAL_DONE_CHANNEL, body);
+        } catch (Exception e) {
+            // 广播失败时由受理节点的定时整理兜底
+            log.warn("广播订单完成失败，订单数{}", remote.size(), e);
+        }
+    }
+
+    @Override
+    public void onMessage(Message message, byte[] pattern) {
+        // 订单id,订单id,...
+        String body = new String(message.getBody(), StandardCharsets.UTF_8);
+        for (String id : body.split(",")) {
+            checkpointLocal(Long.valueOf(id));
+        }
+    }
+
+    /**
+     * 标记本节点日志中的订单完成，订单不在本节点日志中时返回false
+     */
+    private boolean checkpointLocal(Long orderId) {
+        Position position = positions.remove(orderId);
+        if (position == null) {
+            return false;
+        }
+        Segment segment = segments.get(position.value >>> 32);
+        if (segment == null) {
+            return true;
+        }
+        segment.buffer.put((int) (position.value & 0xFFFFFFFFL), DONE);
+        release(segment);
+        return true;
+    }
+
+    /**
+     * 未完成数减一，已封存的段没有未完成的记录时删除
+     */
+    private void release(Segment segment) {
+        if (segment.pending.decrementAndGet() == 0 && segment.sealed) {
+            delete(segment);
+        }
+    }
+
+    /**
+     * 整理本节点日志中长时间未完成的订单，弥补丢失的完成广播
+     * @param findPersisted 查询这些订单id中已经在数据库中的
+     * @param handler 落库逻辑，与重放相同，需要是幂等的
+     */
+    public void compact(Function<List<Long>, Collection<Long>> findPersisted, Consumer<List<VoucherOrder>> handler) {
+        if (!enabled) {
+            return;
+        }
+        // 1.挑出追加后超过compact-age仍未完成的订单
+        long now = System.currentTimeMillis();
+        List<Long> stale = positions.entrySet().stream()
+                .filter(e -> now - e.getValue().appendedAt >= compactAge)
+                .map(Map.Entry::getKey)
+                .collect(Collectors.toList());
+        int done = 0;
+        int redriven = 0;
+        for (int i = 0; i < stale.size(); i += COMPACT_BATCH) {
+            List<Long> ids = stale.subList(i, Math.min(stale.size(), i + COMPACT_BATCH));
+            try {
+                // 2.已经在数据库中的订单标记完成
+                for (Long id : findPersisted.apply(ids)) {
+                    if (checkpointLocal(id)) {
+                        done++;
+                    }
+                }
+                // 3.超过redrive-age仍未落库，消息可能已经丢失，按重放的方式重新落库
+                List<VoucherOrder> orders = new ArrayList<>();
+                for (Long id : ids) {
+                    Position position = positions.get(id);
+                    if (position != null && now - position.appendedAt >= redriveAge) {
+                        orders.add(read(id, position));
+                    }
+                }
+                if (!orders.isEmpty()) {
+                    handler.accept(orders);
+                    for (VoucherOrder order : orders) {
+                        checkpointLocal(order.getId());
+                    }
+                    redriven += orders.size();
+                }
+            } catch (Exception e) {
+                // 保留未完成的记录，下次整理时再处理
+                log.error("整理订单日志失败", e);
+            }
+        }
+        if (done + redriven > 0) {
+            log.info("整理订单日志，标记完成{}条，重新落库{}条，剩余未完成{}条", done, redriven, positions.size());
+        }
+    }
+
+    private VoucherOrder read(Long orderId, Position position) {
+        Segment segment = segments.get(position.value >>> 32);
+        int offset = (int) (position.value & 0xFFFFFFFFL);
+        VoucherOrder order = new VoucherOrder();
+        order.setId(orderId);
+        order.setUserId(segment.buffer.getLong(offset + 16));
+        order.setVoucherId(segment.buffer.getLong(offset + 24));
+        return order;
+    }
+
+    private void markEarlyDone(Long orderId) {
+        long now = System.currentTimeMillis();
+        earlyDone.put(orderId, now);
+        // append在put之后检查positions，避免两边都错过
+        if (positions.containsKey(orderId) && earlyDone.remove(orderId) != null) {
+            checkpointLocal(orderId);
+        }
+        if (earlyDone.size() > EARLY_DONE_PRUNE_SIZE) {
+            earlyDone.values().removeIf(doneAt -> now - doneAt > EARLY_DONE_TTL);
+        }
+    }
+
+    /**
+     * 重放上次运行遗留的未完成订单，处理成功后删除旧段
+     * @param handler 落库逻辑，需要是幂等的，抛出异常时保留旧段，下次启动再处理
+     */
+    public void replay(Consumer<List<VoucherOrder>> handler) {
+        if (!enabled) {
+            return;
+        }
+        for (File file : listSegments()) {
+            if (seqOf(file) == current.seq) {
+                continue;
+            }
+            try {
+                // 1.读取段中状态为PENDING的记录
+                List<VoucherOrder> orders = readPending(file);
+                // 2.重新落库
+                if (!orders.isEmpty()) {
+                    log.info("重放订单日志{}，未完成订单{}条", file.getName(), orders.size());
+                    handler.accept(orders);
+                }
+                // 3.删除已处理的段
+                if (!file.delete()) {
+                    log.warn("删除订单日志失败: {}", file.getAbsolutePath());
+                }
+            } catch (Exception e) {
+                log.error("重放订单日志失败: {}", file.getAbsolutePath(), e);
+            }
+        }
+    }
+
+    private List<VoucherOrder> readPending(File file) throws IOException {
+        List<VoucherOrder> orders = new ArrayList<>();
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r");
+             FileChannel channel = raf.getChannel()) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            for (int offset = 0; offset + RECORD_SIZE <= buffer.capacity(); offset += RECORD_SIZE) {
+                // 并发追加时段内可能有未写完的空位，只处理完整的未完成记录
+                if (buffer.get(offset) != PENDING) {
+                    continue;
+                }
+                VoucherOrder order = new VoucherOrder();
+                order.setId(buffer.getLong(offset + 8));
+                order.setUserId(buffer.getLong(offset + 16));
+                order.setVoucherId(buffer.getLong(offset + 24));
+                orders.add(order);
+            }
+        }
+        return orders;
+    }
+
+    private synchronized void roll(Segment full) {
+        // 其他线程已经滚动过
+        if (current != full) {
+            return;
+        }
+        try {
+            current = openSegment(full.seq + 1);
+        } catch (IOException e) {
+            throw new IllegalStateException("创建订单日志失败", e);
+        }
+        full.sealed = true;
+        if (full.pending.get() == 0) {
+            delete(full);
+        }
+    }
+
+    private Segment openSegment(long seq) throws IOException {
+        File file = new File(directory, String.format("%020d%s", seq, SEGMENT_SUFFIX));
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw");
+             FileChannel channel = raf.getChannel()) {
+            // 映射在通道关闭后仍然有效
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+            Segment segment = new Segment(seq, file, buffer);
+            segments.put(seq, segment);
+            return segment;
+        }
+    }
+
+    private void delete(Segment segment) {
+        // 只删除一次
+        if (segments.remove(segment.seq) != null && !segment.file.delete()) {
+            log.warn("删除订单日志失败: {}", segment.file.getAbsolutePath());
+        }
+    }
+
+    private File[] listSegments() {
+        File[] files = directory.listFiles((d, name) -> name.endsWith(SEGMENT_SUFFIX));
+        if (files == null) {
+            return new File[0];
+        }
+        Arrays.sort(files, Comparator.comparing(File::getName));
+        return files;
+    }
+
+    private static long seqOf(File file) {
+        String name = file.getName();
+        return Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length()));
+    }
+}
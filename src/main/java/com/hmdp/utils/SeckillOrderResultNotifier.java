@@ -0,0 +1,123 @@
+package com.hmdp.utils;
+
+import com.hmdp.dto.Result;
+import org.springframework.data.redis.connection.Message;
+import org.springframework.data.redis.connection.MessageListener;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.stereotype.Component;
+import org.springframework.web.context.request.async.DeferredResult;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import static com.hmdp.utils.RedisConstants.*;
+
+/**
+ * 异步下单结果通知：订单落库成功或失败后写入结果槽 seckill:result:{orderId}，
+ * 并通过发布订阅唤醒所有节点上等待该订单结果的请求
+ */
+@Component
+public class SeckillOrderResultNotifier implements MessageListener {
+
+    public static final String STATUS_SUCCESS = "SUCCESS";
+    public static final String STATUS_FAILED = "FAILED";
+    public static final String STATUS_PROCESSING = "PROCESSING";
+
+    // orderId -> (等待结果的请求 -> 发起请求的用户)
+    private final Map<Long, Map<DeferredResult<Result>, Long>> waiters = new ConcurrentHashMap<>();
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private RedisMessageListenerContainer redisMessageListenerContainer;
+
+    @PostConstruct
+    private void init() {
+        redisMessageListenerContainer.addMessageListener(this, new ChannelTopic(SECKILL_RESULT_CHANNEL));
+    }
+
+    public void success(Long orderId, Long userId) {
+        complete(orderId, userId, STATUS_SUCCESS, "");
+    }
+
+    public void fail(Long orderId, Long userId, String reason) {
+        complete(orderId, userId, STATUS_FAILED, reason);
+    }
+
+    /**
+     * 写入结果槽并广播，槽内容为 userId|status|reason
+     */
+    private void complete(Long orderId, Long userId, String status, String reason) {
+        String slot = userId + "|" + status + "|" + reason;
+        stringRedisTemplate.opsForValue().set(SECKILL_RESULT_KEY + orderId, slot, SECKILL_RESULT_TTL, TimeUnit.MINUTES);
+        stringRedisTemplate.convertAndSend(SECKILL_RESULT_CHANNEL, orderId + "|" + slot);
+    }
+
+    /**
+     * 等待订单结果，结果已经存在时立即返回，否则挂起请求直到结果到达或超时
+     * @param orderId 订单id
+     * @param userId 当前用户，只能查询自己的订单
+     * @param timeout 最长等待时间，毫秒
+     */
+    public DeferredResult<Result> await(Long orderId, Long userId, long timeout) {
+        DeferredResult<Result> deferred = new DeferredResult<>(timeout, () -> toResult(orderId, STATUS_PROCESSING, ""));
+        // 1.先登记再查询结果槽，保证查询之后到达的结果一定能唤醒本请求
+        waiters.computeIfAbsent(orderId, k -> new ConcurrentHashMap<>()).put(deferred, userId);
+        deferred.onCompletion(() -> removeWaiter(orderId, deferred));
+        // 2.查询结果槽
+        String slot = stringRedisTemplate.opsForValue().get(SECKILL_RESULT_KEY + orderId);
+        if (slot != null) {
+            String[] parts = slot.split("\\|", 3);
+            deferred.setResult(toResult(orderId, userId, parts[0], parts[1], parts[2]));
+        }
+        return deferred;
+    }
+
+    @Override
+    public void onMessage(Message message, byte[] pattern) {
+        // orderId|userId|status|reason
+        String[] parts = new String(message.getBody(), StandardCharsets.UTF_8).split("\\|", 4);
+        if (parts.length < 4) {
+            return;
+        }
+        Long orderId = Long.valueOf(parts[0]);
+        Map<DeferredResult<Result>, Long> map = waiters.remove(orderId);
+        if (map == null) {
+            return;
+        }
+        map.forEach((deferred, userId) -> deferred.setResult(toResult(orderId, userId, parts[1], parts[2], parts[3])));
+    }
+
+    private void removeWaiter(Long orderId, DeferredResult<Result> deferred) {
+        waiters.computeIfPresent(orderId, (k, map) -> {
+            map.remove(deferred);
+            return map.isEmpty() ? null : map;
+        });
+    }
+
+    private static Result toResult(Long orderId, Long userId, String owner, String status, String reason) {
+        // 只能查询自己的订单
+        if (!owner.equals(userId.toString())) {
+            return Result.fail("订单不存在");
+        }
+        return toResult(orderId, status, reason);
+    }
+
+    private static Result toResult(Long orderId, String status, String reason) {
+        Map<String, Object> data = new LinkedHashMap<>(4);
+        data.put("orderId", orderId);
+        data.put("status", status);
+        if (!reason.isEmpty()) {
+            data.put("reason", reason);
+        }
+        return Result.ok(data);
+    }
+}
@@ -0,0 +1,207 @@
+package com.hmdp.utils;
+
+import com.hmdp.entity.VoucherOrder;
+import com.hmdp.service.IVoucherOrderService;
+import lombok.extern.slf4j.Slf4j;
+import org.redisson.api.RLock;
+import org.redisson.api.RedissonClient;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static com.hmdp.utils.RedisConstants.SECKILL_PARTITIONS;
+import static com.hmdp.utils.RedisConstants.SECKILL_PAY_ORPHAN_KEY;
+import static com.hmdp.utils.RedisConstants.SECKILL_PAY_ORPHAN_TTL;
+import static com.hmdp.utils.RedisConstants.SECKILL_VOUCHER_LOCK_KEY;
+
+/**
+ * 支付超时取消：秒杀脚本受理订单时把到期时间登记到所在分区的ZSET seckill:pay:timeout:{分区}，
+ * 定时轮询认领到期的任务，取消仍未支付的订单并归还库存。
+ * 待支付订单按分区存放在少数几个ZSET中，轮询按批认领，不需要为每个订单占用线程或定时器。
+ * <p>
+ * 到期时订单还没有落库的任务在 seckill:pay:missing:{分区} 中计数，连续 pay-timeout-missing-attempts 次认领
+ * 都没有落库时归还Redis库存并删除任务，避免订单转入死信或者消息丢失后库存永远占用。
+ * 归还前按订单id留下标记 seckill:pay:orphan:{订单id}，之后重放死信时不再落库，避免库存算两次
+ */
+@Slf4j
+@Component
+public class SeckillPayTimeoutCanceller {
+
+    private static final DefaultRedisScript<List> CLAIM_SCRIPT;
+    private static final DefaultRedisScript<Long> CANCEL_SCRIPT;
+    static {
+        CLAIM_SCRIPT = new DefaultRedisScript<>();
+        CLAIM_SCRIPT.setLocation(new ClassPathResource("seckill_timeout_claim.lua"));
+        CLAIM_SCRIPT.setResultType(List.class);
+        CANCEL_SCRIPT = new DefaultRedisScript<>();
+        CANCEL_SCRIPT.setLocation(new ClassPathResource("seckill_cancel.lua"));
+        CANCEL_SCRIPT.setResultType(Long.class);
+    }
+
+    // 单次认领的任务数
+    @Value("${hmdp.seckill.pay-timeout-batch:500}")
+    private int batch;
+    // 认领后的租约时长（毫秒），处理失败或节点宕机时租约到期后重新处理
+    @Value("${hmdp.seckill.pay-timeout-lease:30000}")
+    private long lease;
+    // 到期后订单连续多少次认领都没有落库时放弃等待
+    @Value("${hmdp.seckill.pay-timeout-missing-attempts:40}")
+    private int missingAttempts;
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private IVoucherOrderService voucherOrderService;
+
+    @Resource
+    private SeckillSoldOutMarker seckillSoldOutMarker;
+
+    @Resource
+    private SeckillMetrics seckillMetrics;
+
+    @Resource
+    private RedissonClient redissonClient;
+
+    @PostConstruct
+    private void init() {
+        seckillMetrics.gauge("payTimeoutPending", () -> {
+            long pending = 0;
+            for (int p = 0; p < SECKILL_PARTITIONS; p++) {
+                Long n = stringRedisTemplate.opsForZSet().zCard(SeckillKeys.payTimeoutKey(p));
+                pending += n == null ? 0 : n;
+            }
+            return pending;
+        });
+    }
+
+    @Scheduled(fixedDelayString = "${hmdp.seckill.pay-timeout-poll:1000}")
+    public void poll() {
+        for (int p = 0; p < SECKILL_PARTITIONS; p++) {
+            try {
+                poll(p);
+            } catch (Exception e) {
+                log.error("轮询支付超时队列失败，partition={}", p, e);
+            }
+        }
+    }
+
+    private void poll(int partition) {
+        while (true) {
+            // 1.认领一批到期任务
+            List<?> members = stringRedisTemplate.execute(CLAIM_SCRIPT,
+                    Collections.singletonList(SeckillKeys.payTimeoutKey(partition)),
+                    String.valueOf(batch), String.valueOf(lease));
+            if (members == null || members.isEmpty()) {
+                return;
+            }
+            // 2.逐个处理，失败的等租约到期后重试
+            for (Object member : members) {
+                try {
+                    handle(member.toString());
+                } catch (Exception e) {
+                    log.error("取消超时订单失败，{}", member, e);
+                }
+            }
+            // 3.不足一批说明已经处理完
+            if (members.size() < batch) {
+                return;
+            }
+        }
+    }
+
+    private void handle(String member) {
+        // 订单id:优惠券id:用户id
+        String[] parts = member.split(":");
+        Long orderId = Long.valueOf(parts[0]);
+        Long voucherId = Long.valueOf(parts[1]);
+        Long userId = Long.valueOf(parts[2]);
+        // 改动订单和库存时持有秒杀券订单锁，与库存修复互斥，正在修复时等租约到期后再处理
+        RLock lock = redissonClient.getLock(SECKILL_VOUCHER_LOCK_KEY + voucherId);
+        if (!lock.tryLock()) {
+            return;
+        }
+        try {
+            handle(member, orderId, voucherId, userId);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void handle(String member, Long orderId, Long voucherId, Long userId) {
+        int partition = SeckillKeys.partition(voucherId);
+        String timeoutKey = SeckillKeys.payTimeoutKey(partition);
+        String missingKey = SeckillKeys.payMissingKey(partition);
+        VoucherOrder order = voucherOrderService.getById(orderId);
+        // 1.订单还没有落库，等租约到期后再处理
+        if (order == null) {
+            // 1.1.多次认领仍未落库，说明订单已经转入死信、被数据库拒绝或者消息丢失，不再等待
+            Long missing = stringRedisTemplate.opsForHash().increment(missingKey, member, 1);
+            if (missing < missingAttempts) {
+                return;
+            }
+            // 1.2.归还Redis库存并删除任务，用户还有其他有效订单时不允许重新下单
+            boolean keepUser = voucherOrderService.query()
+                    .eq("user_id", userId).eq("voucher_id", voucherId).ne("status", 4).count() > 0;
+            // 1.3.先留下标记再归还，中断时任务还在，下次认领会再次归还
+            stringRedisTemplate.opsForValue().set(SECKILL_PAY_ORPHAN_KEY + orderId, voucherId.toString(),
+                    SECKILL_PAY_ORPHAN_TTL, TimeUnit.DAYS);
+            if (restoreStock(member, voucherId, keepUser)) {
+                log.warn("订单{}超时后仍未落库，已归还Redis库存，等待次数：{}", orderId, missing);
+                seckillMetrics.increment("orderPayTimeoutOrphans");
+            }
+            return;
+        }
+        // 2.已支付等其他状态，删除任务
+        if (order.getStatus() != 1 && order.getStatus() != 4) {
+            stringRedisTemplate.opsForZSet().remove(timeoutKey, member);
+            stringRedisTemplate.opsForHash().delete(missingKey, member);
+            return;
+        }
+        // 3.未支付，取消订单并归还数据库库存；已取消说明上次归还Redis库存前中断了
+        if (order.getStatus() == 1 && !voucherOrderService.cancelUnpaidOrder(order)) {
+            // 取消前刚好支付，下次认领时删除任务
+            return;
+        }
+        // 4.归还Redis库存，允许用户重新下单
+        if (restoreStock(member, voucherId, false)) {
+            seckillMetrics.increment("orderPayTimeouts");
+        }
+    }
+
+    /**
+     * 执行取消脚本归还Redis库存并删除任务，返回是否由本次归还
+     */
+    private boolean restoreStock(String member, Long voucherId, boolean keepUser) {
+        String[] parts = member.split(":");
+        int partition = SeckillKeys.partition(voucherId);
+        // 分片时归还到用户的首选分片，分片数在创建秒杀券后不再变化
+        String shards = stringRedisTemplate.opsForValue().get(SeckillKeys.shardsKey(voucherId));
+        int n = shards == null ? 1 : Integer.parseInt(shards);
+        List<String> keys = new ArrayList<>(5);
+        keys.add(SeckillKeys.payTimeoutKey(partition));
+        keys.add(n > 1 ? SeckillKeys.stockShardKey(voucherId, (int) (Long.parseLong(parts[2]) % n))
+                : SeckillKeys.stockKey(voucherId));
+        keys.add(SeckillKeys.orderKey(voucherId));
+        keys.add(SeckillKeys.payMissingKey(partition));
+        if (n > 1) {
+            keys.add(SeckillKeys.shardedKey(partition));
+        }
+        Long r = stringRedisTemplate.execute(CANCEL_SCRIPT, keys, member, parts[1], parts[2], keepUser ? "1" : "0");
+        if (r == null || r != 1) {
+            return false;
+        }
+        seckillSoldOutMarker.clear(voucherId);
+        return true;
+    }
+}
@@ -0,0 +1,95 @@
+package com.hmdp.utils;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.connection.Message;
+import org.springframework.data.redis.connection.MessageListener;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import static com.hmdp.utils.RedisConstants.SECKILL_SOLD_OUT_CHANNEL;
+
+/**
+ * 本地售罄标记：优惠券卖完后，本节点直接拒绝请求，不再执行秒杀脚本。
+ * 售罄和库存恢复通过Redis发布订阅广播给其他节点，消息格式为 +voucherId / -voucherId。
+ * 只标记预热过元数据的券，不存在的券不占用本地内存、不广播
+ */
+@Component
+public class SeckillSoldOutMarker implements MessageListener {
+
+    // voucherId -> 标记时间
+    private Cache<Long, Long> soldOut;
+
+    // 标记的有效期，过期后放行一次请求到Redis重新确认，防止错过恢复库存的广播
+    @Value("${hmdp.seckill.sold-out-ttl:10000}")
+    private long soldOutTtl;
+    // 最多保留的售罄标记数
+    @Value("${hmdp.seckill.sold-out-max-vouchers:10000}")
+    private long maxVouchers;
+
+    @Resource
+    private SeckillVoucherPreloader seckillVoucherPreloader;
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private RedisMessageListenerContainer redisMessageListenerContainer;
+
+    @PostConstruct
+    private void init() {
+        soldOut = Caffeine.newBuilder()
+                .maximumSize(maxVouchers)
+                .expireAfterWrite(soldOutTtl, TimeUnit.MILLISECONDS)
+                .build();
+        redisMessageListenerContainer.addMessageListener(this, new ChannelTopic(SECKILL_SOLD_OUT_CHANNEL));
+    }
+
+    public boolean isSoldOut(Long voucherId) {
+        return soldOut.getIfPresent(voucherId) != null;
+    }
+
+    /**
+     * 标记售罄并通知其他节点
+     */
+    public void markSoldOut(Long voucherId) {
+        // 1.没有预热元数据的券（不存在或未预热）不标记
+        if (seckillVoucherPreloader.getMeta(voucherId).isUnrestricted()) {
+            return;
+        }
+        // 2.已经标记过就不重复广播
+        if (soldOut.asMap().putIfAbsent(voucherId, System.currentTimeMillis()) == null) {
+            stringRedisTemplate.convertAndSend(SECKILL_SOLD_OUT_CHANNEL, "+" + voucherId);
+        }
+    }
+
+    /**
+     * 库存恢复后清除售罄标记并通知其他节点
+     */
+    public void clear(Long voucherId) {
+        soldOut.invalidate(voucherId);
+        stringRedisTemplate.convertAndSend(SECKILL_SOLD_OUT_CHANNEL, "-" + voucherId);
+    }
+
+    @Override
+    public void onMessage(Message message, byte[] pattern) {
+        String body = new String(message.getBody(), StandardCharsets.UTF_8);
+        if (body.length() < 2) {
+            return;
+        }
+        Long voucherId = Long.valueOf(body.substring(1));
+        if (body.charAt(0) == '+') {
+            soldOut.asMap().putIfAbsent(voucherId, System.currentTimeMillis());
+        } else {
+            soldOut.invalidate(voucherId);
+        }
+    }
+}
@@ -0,0 +1,64 @@
+package com.hmdp.utils;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Resource;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
+import static com.hmdp.utils.RedisConstants.SECKILL_PARTITIONS;
+
+/**
+ * 分片库存均衡任务：定期把各分片的剩余库存重新平均分配，
+ * 让每个用户的首选分片尽量有货，秒杀结束时库存能被完整卖光
+ */
+@Slf4j
+@Component
+public class SeckillStockRebalancer {
+
+    private static final DefaultRedisScript<Long> REBALANCE_SCRIPT;
+    static {
+        REBALANCE_SCRIPT = new DefaultRedisScript<>();
+        REBALANCE_SCRIPT.setLocation(new ClassPathResource("stock_rebalance.lua"));
+        REBALANCE_SCRIPT.setResultType(Long.class);
+    }
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Scheduled(fixedDelayString = "${hmdp.seckill.rebalance-interval:500}")
+    public void rebalance() {
+        for (int p = 0; p < SECKILL_PARTITIONS; p++) {
+            String shardedKey = SeckillKeys.shardedKey(p);
+            Set<String> voucherIds = stringRedisTemplate.opsForSet().members(shardedKey);
+            if (voucherIds == null || voucherIds.isEmpty()) {
+                continue;
+            }
+            for (String voucherId : voucherIds) {
+                try {
+                    Long id = Long.valueOf(voucherId);
+                    // 分片库存key通过KEYS传入：库存分片数key + 各分片库存key
+                    String shards = stringRedisTemplate.opsForValue().get(SeckillKeys.shardsKey(id));
+                    List<String> keys = new ArrayList<>();
+                    keys.add(SeckillKeys.shardsKey(id));
+                    if (shards != null) {
+                        keys.addAll(SeckillKeys.stockKeys(id, Integer.parseInt(shards)));
+                    }
+                    Long remaining = stringRedisTemplate.execute(REBALANCE_SCRIPT, keys);
+                    // 已卖完或不再分片，不再参与均衡
+                    if (remaining == null || remaining <= 0) {
+                        stringRedisTemplate.opsForSet().remove(shardedKey, voucherId);
+                    }
+                } catch (Exception e) {
+                    log.error("分片库存均衡失败，voucherId={}", voucherId, e);
+                }
+            }
+        }
+    }
+}
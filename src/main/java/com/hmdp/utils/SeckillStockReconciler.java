@@ -0,0 +1,424 @@
+package com.hmdp.utils;
+
+import com.hmdp.entity.SeckillVoucher;
+import com.hmdp.entity.VoucherOrder;
+import com.hmdp.service.ISeckillVoucherService;
+import com.hmdp.service.IVoucherOrderService;
+import lombok.Data;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.redisson.api.RLock;
+import org.redisson.api.RedissonClient;
+import org.springframework.data.domain.Range;
+import org.springframework.data.redis.connection.RedisZSetCommands;
+import org.springframework.data.redis.connection.stream.MapRecord;
+import org.springframework.data.redis.connection.stream.PendingMessage;
+import org.springframework.data.redis.connection.stream.PendingMessages;
+import org.springframework.data.redis.connection.stream.StreamInfo;
+import org.springframework.data.redis.core.Cursor;
+import org.springframework.data.redis.core.ScanOptions;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import java.time.LocalDateTime;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static com.hmdp.utils.RedisConstants.SECKILL_STREAM_GROUP;
+import static com.hmdp.utils.RedisConstants.SECKILL_VOUCHER_LOCK_KEY;
+
+/**
+ * 秒杀库存对账：定期比较Redis中的剩余库存、已下单用户集合与数据库中的库存、订单数。
+ * 正常情况下两边的 剩余库存 + 订单数 都等于初始库存，消费线程丢单时两边会出现差异。
+ * <p>
+ * 每轮只检查一部分秒杀券，下一轮从上次结束的位置继续；异步落库期间两边短暂不一致，
+ * 同一差异连续两轮出现才认为是漂移，通过 /admin/voucher-order/metrics 的 stockDrift 查看。
+ * 修复时按用户逐个比较，Redis一侧用SSCAN分页遍历，不会长时间阻塞Redis。
+ * <p>
+ * 修复只在秒杀时间窗口之外、消息队列中没有该券未投递或未确认的订单时进行，
+ * 并持有秒杀券订单锁，重放订单、超时取消等不经过消息队列的改动在修复期间等待。
+ */
+@Slf4j
+@Component
+public class SeckillStockReconciler {
+
+    public static final String SOURCE_DB = "db";
+    public static final String SOURCE_REDIS = "redis";
+
+    // 每轮检查的秒杀券数
+    @Value("${hmdp.seckill.reconcile.batch:50}")
+    private int batch;
+    // 结束超过该时长（小时）的秒杀券不再检查
+    @Value("${hmdp.seckill.reconcile.retention-hours:24}")
+    private long retentionHours;
+    // SSCAN和数据库分页的每页大小
+    @Value("${hmdp.seckill.reconcile.page-size:1000}")
+    private int pageSize;
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private ISeckillVoucherService seckillVoucherService;
+
+    @Resource
+    private IVoucherOrderService voucherOrderService;
+
+    @Resource
+    private RedisIdWorker redisIdWorker;
+
+    @Resource
+    private SeckillSoldOutMarker seckillSoldOutMarker;
+
+    @Resource
+    private SeckillMetrics seckillMetrics;
+
+    @Resource
+    private RedissonClient redissonClient;
+
+    // 上一轮检查到的最后一张券，下一轮从它之后继续
+    private long cursor;
+    // 上一轮发现差异、等待确认的券
+    private final Map<Long, StockDrift> suspects = new ConcurrentHashMap<>();
+    // 已确认的漂移
+    private final Map<Long, StockDrift> drifts = new ConcurrentHashMap<>();
+
+    @Data
+    public static class StockDrift {
+        private Long voucherId;
+        private long redisStock;
+        private long redisOrders;
+        private long dbStock;
+        private long dbOrders;
+
+        boolean sameAs(StockDrift other) {
+            return other != null && redisStock == other.redisStock && redisOrders == other.redisOrders
+                    && dbStock == other.dbStock && dbOrders == other.dbOrders;
+        }
+
+        boolean isConsistent() {
+            return redisStock == dbStock && redisOrders == dbOrders;
+        }
+    }
+
+    @PostConstruct
+    private void init() {
+        seckillMetrics.gauge("stockDrift", () -> new TreeMap<>(drifts));
+    }
+
+    @Scheduled(fixedDelayString = "${hmdp.seckill.reconcile.interval:60000}",
+            initialDelayString = "${hmdp.seckill.reconcile.interval:60000}")
+    public void reconcile() {
+        // 1.取本轮要检查的秒杀券
+        List<SeckillVoucher> vouchers = seckillVoucherService.query()
+                .gt("voucher_id", cursor)
+                .gt("end_time", LocalDateTime.now().minusHours(retentionHours))
+                .orderByAsc("voucher_id")
+                .last("limit " + batch)
+                .list();
+        // 1.1.已经检查到末尾，下一轮从头开始
+        cursor = vouchers.size() < batch ? 0 : vouchers.get(vouchers.size() - 1).getVoucherId();
+        seckillMetrics.increment("reconcileRuns");
+        for (SeckillVoucher voucher : vouchers) {
+            try {
+                check(voucher);
+            } catch (Exception e) {
+                log.error("秒杀库存对账失败，voucherId={}", voucher.getVoucherId(), e);
+            }
+        }
+    }
+
+    private void check(SeckillVoucher voucher) {
+        Long voucherId = voucher.getVoucherId();
+        // 1.读取两边的库存和订单数，Redis中没有库存说明未预热或已归档，跳过
+        StockDrift current = snapshot(voucherId, voucher.getStock());
+        if (current == null) {
+            suspects.remove(voucherId);
+            drifts.remove(voucherId);
+            return;
+        }
+        // 2.一致，清除之前的记录
+        if (current.isConsistent()) {
+            suspects.remove(voucherId);
+            drifts.remove(voucherId);
+            return;
+        }
+        // 3.连续两轮差异相同才认为是漂移，排除正在异步落库的订单
+        StockDrift previous = suspects.put(voucherId, current);
+        if (current.sameAs(previous)) {
+            if (drifts.put(voucherId, current) == null) {
+                seckillMetrics.increment("reconcileDrifts");
+                log.warn("秒杀库存漂移：{}", current);
+            }
+        }
+    }
+
+    /**
+     * Redis和数据库的库存、订单数是否一致，Redis中没有库存时返回false
+     */
+    public boolean isReconciled(SeckillVoucher voucher) {
+        StockDrift current = snapshot(voucher.getVoucherId(), voucher.getStock());
+        return current != null && current.isConsistent();
+    }
+
+    private StockDrift snapshot(Long voucherId, int dbStock) {
+        Long redisStock = redisStock(voucherId);
+        if (redisStock == null) {
+            return null;
+        }
+        StockDrift drift = new StockDrift();
+        drift.setVoucherId(voucherId);
+        drift.setRedisStock(redisStock);
+        Long redisOrders = stringRedisTemplate.opsForSet().size(SeckillKeys.orderKey(voucherId));
+        drift.setRedisOrders(redisOrders == null ? 0 : redisOrders);
+        drift.setDbStock(dbStock);
+        // 已取消的订单已经归还库存，不计入
+        drift.setDbOrders(voucherOrderService.query().eq("voucher_id", voucherId).ne("status", 4).count());
+        return drift;
+    }
+
+    private Long redisStock(Long voucherId) {
+        // 分片时累加各分片库存
+        String shards = stringRedisTemplate.opsForValue().get(SeckillKeys.shardsKey(voucherId));
+        if (shards == null) {
+            String stock = stringRedisTemplate.opsForValue().get(SeckillKeys.stockKey(voucherId));
+            return stock == null ? null : Math.max(0, Long.parseLong(stock));
+        }
+        List<String> keys = new ArrayList<>();
+        for (int i = 0; i < Integer.parseInt(shards); i++) {
+            keys.add(SeckillKeys.stockShardKey(voucherId, i));
+        }
+        List<String> stocks = stringRedisTemplate.opsForValue().multiGet(keys);
+        long total = 0;
+        for (String s : stocks) {
+            total += s == null ? 0 : Math.max(0, Long.parseLong(s));
+        }
+        return total;
+    }
+
+    /**
+     * 修复一张秒杀券的库存和已下单用户
+     * @param source db：以数据库为准修复Redis；redis：以Redis为准补齐数据库中缺失的订单
+     * @return 修复前后的库存、订单数和改动的用户数
+     */
+    public Map<String, Object> repair(Long voucherId, String source) {
+        SeckillVoucher voucher = seckillVoucherService.getById(voucherId);
+        if (voucher == null) {
+            throw new IllegalArgumentException("秒杀券不存在: " + voucherId);
+        }
+        if (!SOURCE_DB.equals(source) && !SOURCE_REDIS.equals(source)) {
+            throw new IllegalArgumentException("未知的修复来源: " + source);
+        }
+        // 1.秒杀进行中两边一直在变化，不能修复
+        LocalDateTime now = LocalDateTime.now();
+        if (!now.isBefore(voucher.getBeginTime()) && !now.isAfter(voucher.getEndTime())) {
+            throw new IllegalStateException("秒杀进行中，不能修复: " + voucherId);
+        }
+        // 2.获取秒杀券订单锁
+        RLock lock = redissonClient.getLock(SECKILL_VOUCHER_LOCK_KEY + voucherId);
+        if (!lock.tryLock()) {
+            throw new IllegalStateException("正在修复或处理该券的订单: " + voucherId);
+        }
+        try {
+            // 3.消息队列中还有该券的订单，落库后再修复
+            String backlog = streamBacklog(voucherId);
+            if (backlog != null) {
+                throw new IllegalStateException("消息队列中还有" + backlog + "订单，不能修复: " + voucherId);
+            }
+            return doRepair(voucherId, source);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private Map<String, Object> doRepair(Long voucherId, String source) {
+        SeckillVoucher voucher = seckillVoucherService.getById(voucherId);
+        Map<String, Object> report = new LinkedHashMap<>();
+        report.put("before", snapshot(voucherId, voucher.getStock()));
+        // 1.分页读取数据库中已下单的用户
+        Set<Long> dbUsers = dbUsers(voucherId);
+        if (SOURCE_DB.equals(source)) {
+            repairRedis(voucherId, voucher.getStock(), dbUsers, report);
+        } else {
+            repairDb(voucherId, dbUsers, report);
+        }
+        voucher = seckillVoucherService.getById(voucherId);
+        StockDrift after = snapshot(voucherId, voucher.getStock());
+        report.put("after", after);
+        suspects.remove(voucherId);
+        drifts.remove(voucherId);
+        log.info("秒杀库存修复完成：{}", report);
+        return report;
+    }
+
+    /**
+     * 查找消息队列中该券未投递或已投递未确认的订单
+     * @return 找到时返回"未投递的"或"未确认的"，没有时返回null
+     */
+    private String streamBacklog(Long voucherId) {
+        String streamKey = SeckillKeys.streamKey(SeckillKeys.partition(voucherId));
+        if (!Boolean.TRUE.equals(stringRedisTemplate.hasKey(streamKey))) {
+            return null;
+        }
+        String voucher = voucherId.toString();
+        // 1.已投递未确认：按页读取pending-list，逐条查询消息内容
+        String last = null;
+        while (true) {
+            PendingMessages pending = stringRedisTemplate.opsForStream().pending(streamKey, SECKILL_STREAM_GROUP,
+                    last == null ? Range.unbounded() : Range.rightUnbounded(Range.Bound.inclusive(last)), pageSize);
+            int fresh = 0;
+            for (PendingMessage message : pending) {
+                String id = message.getIdAsString();
+                if (id.equals(last)) {
+                    continue;
+                }
+                fresh++;
+                last = id;
+                List<MapRecord<String, Object, Object>> records = stringRedisTemplate.opsForStream()
+                        .range(streamKey, Range.closed(id, id));
+                if (records != null && !records.isEmpty() && voucher.equals(records.get(0).getValue().get("voucherId"))) {
+                    return "未确认的";
+                }
+            }
+            if (fresh == 0) {
+                break;
+            }
+        }
+        // 2.未投递：消费者组最后投递的消息之后的消息
+        String lastDelivered = stringRedisTemplate.opsForStream().groups(streamKey).stream()
+                .filter(group -> SECKILL_STREAM_GROUP.equals(group.groupName()))
+                .map(StreamInfo.XInfoGroup::lastDeliveredId)
+                .findFirst().orElse(null);
+        Range<String> range = lastDelivered == null ? Range.unbounded()
+                : Range.rightUnbounded(Range.Bound.inclusive(lastDelivered));
+        while (true) {
+            List<MapRecord<String, Object, Object>> records = stringRedisTemplate.opsForStream()
+                    .range(streamKey, range, RedisZSetCommands.Limit.limit().count(pageSize));
+            int fresh = 0;
+            if (records == null) {
+                return null;
+            }
+            for (MapRecord<String, Object, Object> record : records) {
+                String id = record.getId().getValue();
+                if (id.equals(lastDelivered)) {
+                    continue;
+                }
+                fresh++;
+                lastDelivered = id;
+                if (voucher.equals(record.getValue().get("voucherId"))) {
+                    return "未投递的";
+                }
+            }
+            if (fresh == 0) {
+                return null;
+            }
+            range = Range.rightUnbounded(Range.Bound.inclusive(lastDelivered));
+        }
+    }
+
+    private void repairRedis(Long voucherId, int dbStock, Set<Long> dbUsers, Map<String, Object> report) {
+        String orderKey = SeckillKeys.orderKey(voucherId);
+        // 1.SSCAN遍历Redis中的用户，删除数据库中没有订单的用户
+        Set<Long> missing = new HashSet<>(dbUsers);
+        List<String> extra = new ArrayList<>();
+        try (Cursor<String> scan = stringRedisTemplate.opsForSet().scan(orderKey, ScanOptions.scanOptions().count(pageSize).build())) {
+            while (scan.hasNext()) {
+                String userId = scan.next();
+                if (!missing.remove(Long.valueOf(userId))) {
+                    extra.add(userId);
+                }
+            }
+        }
+        for (int i = 0; i < extra.size(); i += pageSize) {
+            stringRedisTemplate.opsForSet().remove(orderKey, extra.subList(i, Math.min(extra.size(), i + pageSize)).toArray());
+        }
+        // 2.补上数据库中有订单、Redis中缺失的用户
+        addUsers(orderKey, missing);
+        // 3.库存以数据库为准，分片时平均分配
+        writeStock(voucherId, dbStock);
+        if (dbStock > 0) {
+            seckillSoldOutMarker.clear(voucherId);
+        }
+        report.put("removedUsers", extra.size());
+        report.put("addedUsers", missing.size());
+    }
+
+    private void repairDb(Long voucherId, Set<Long> dbUsers, Map<String, Object> report) {
+        String orderKey = SeckillKeys.orderKey(voucherId);
+        Long redisStock = redisStock(voucherId);
+        if (redisStock == null) {
+            throw new IllegalStateException("Redis中没有库存: " + voucherId);
+        }
+        // 1.SSCAN遍历Redis中的用户，找出数据库中没有订单的用户
+        List<VoucherOrder> missing = new ArrayList<>();
+        Set<Long> extra = new HashSet<>(dbUsers);
+        try (Cursor<String> scan = stringRedisTemplate.opsForSet().scan(orderKey, ScanOptions.scanOptions().count(pageSize).build())) {
+            while (scan.hasNext()) {
+                Long userId = Long.valueOf(scan.next());
+                if (!extra.remove(userId)) {
+                    VoucherOrder order = new VoucherOrder();
+                    order.setId(redisIdWorker.nextId("order"));
+                    order.setUserId(userId);
+                    order.setVoucherId(voucherId);
+                    missing.add(order);
+                }
+            }
+        }
+        // 2.库存以Redis为准，补单和改库存在同一个事务中，失败时数据库不变，也不改动Redis
+        int created = voucherOrderService.repairOrders(voucherId, redisStock, missing, pageSize);
+        // 3.已经落库的订单不能删除，把对应用户补到Redis，保证一人一单
+        addUsers(orderKey, extra);
+        report.put("createdOrders", created);
+        report.put("addedUsers", extra.size());
+    }
+
+    private Set<Long> dbUsers(Long voucherId) {
+        Set<Long> users = new HashSet<>();
+        long last = 0;
+        while (true) {
+            List<VoucherOrder> page = voucherOrderService.query()
+                    .select("user_id")
+                    .eq("voucher_id", voucherId)
+                    .ne("status", 4)
+                    .gt("user_id", last)
+                    .orderByAsc("user_id")
+                    .last("limit " + pageSize)
+                    .list();
+            for (VoucherOrder order : page) {
+                users.add(order.getUserId());
+            }
+            if (page.size() < pageSize) {
+                return users;
+            }
+            last = page.get(page.size() - 1).getUserId();
+        }
+    }
+
+    private void addUsers(String orderKey, Set<Long> users) {
+        List<String> list = new ArrayList<>(users.size());
+        users.forEach(u -> list.add(u.toString()));
+        for (int i = 0; i < list.size(); i += pageSize) {
+            stringRedisTemplate.opsForSet().add(orderKey, list.subList(i, Math.min(list.size(), i + pageSize)).toArray(new String[0]));
+        }
+    }
+
+    private void writeStock(Long voucherId, long stock) {
+        String shards = stringRedisTemplate.opsForValue().get(SeckillKeys.shardsKey(voucherId));
+        if (shards == null) {
+            stringRedisTemplate.opsForValue().set(SeckillKeys.stockKey(voucherId), String.valueOf(stock));
+            return;
+        }
+        int n = Integer.parseInt(shards);
+        Map<String, String> shardStocks = new HashMap<>(n);
+        for (int i = 0; i < n; i++) {
+            shardStocks.put(SeckillKeys.stockShardKey(voucherId, i), String.valueOf(stock / n + (i < stock % n ? 1 : 0)));
+        }
+        stringRedisTemplate.opsForValue().multiSet(shardStocks);
+        if (stock > 0) {
+            stringRedisTemplate.opsForSet().add(SeckillKeys.shardedKey(SeckillKeys.partition(voucherId)), voucherId.toString());
+        }
+    }
+}
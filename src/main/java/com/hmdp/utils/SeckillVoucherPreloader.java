@@ -0,0 +1,171 @@
+package com.hmdp.utils;
+
+import com.hmdp.entity.SeckillVoucher;
+import com.hmdp.service.ISeckillVoucherService;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.Expiry;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 秒杀券元数据预热：把秒杀时间窗口和库存写入Redis哈希 seckill:meta:{id}，
+ * 供秒杀脚本原子地校验时间；同时在本地保留一份，秒杀开始前的请求无需任何网络调用即可拒绝。
+ * <p>
+ * 本地副本按条数淘汰；Redis中没有元数据的券（不存在的券id或者未预热的老券）只缓存 miss-ttl，
+ * 不会因为请求随意的券id而无限增长
+ */
+@Slf4j
+@Component
+public class SeckillVoucherPreloader {
+
+    /**
+     * 秒杀时间窗口（毫秒时间戳）和库存分片数
+     */
+    public static class SeckillMeta {
+        private final long beginMillis;
+        private final long endMillis;
+        // 库存分片数，1表示不分片
+        private final int shards;
+
+        SeckillMeta(long beginMillis, long endMillis, int shards) {
+            this.beginMillis = beginMillis;
+            this.endMillis = endMillis;
+            this.shards = shards;
+        }
+
+        public long getBeginMillis() {
+            return beginMillis;
+        }
+
+        public long getEndMillis() {
+            return endMillis;
+        }
+
+        public int getShards() {
+            return shards;
+        }
+
+        /**
+         * Redis中没有元数据，不限制时间
+         */
+        boolean isUnrestricted() {
+            return beginMillis == Long.MIN_VALUE && endMillis == Long.MAX_VALUE;
+        }
+    }
+
+    // 本地副本的最大条数
+    @Value("${hmdp.seckill.meta.maximum-size:10000}")
+    private long maximumSize;
+    // Redis中没有元数据时本地缓存的时长（毫秒）
+    @Value("${hmdp.seckill.meta.miss-ttl:1000}")
+    private long missTtl;
+
+    private Cache<Long, SeckillMeta> localMeta;
+
+    @Resource
+    private ISeckillVoucherService seckillVoucherService;
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    // 启动时预热所有未结束的秒杀券
+    @PostConstruct
+    private void init() {
+        // 预热过的券一直保留到被按条数淘汰，没有元数据的券短时间后过期
+        localMeta = Caffeine.newBuilder()
+                .maximumSize(maximumSize)
+                .expireAfter(new Expiry<Long, SeckillMeta>() {
+                    @Override
+                    public long expireAfterCreate(Long voucherId, SeckillMeta meta, long currentTime) {
+                        return meta.isUnrestricted() ? TimeUnit.MILLISECONDS.toNanos(missTtl) : Long.MAX_VALUE;
+                    }
+
+                    @Override
+                    public long expireAfterUpdate(Long voucherId, SeckillMeta meta, long currentTime, long currentDuration) {
+                        return expireAfterCreate(voucherId, meta, currentTime);
+                    }
+
+                    @Override
+                    public long expireAfterRead(Long voucherId, SeckillMeta meta, long currentTime, long currentDuration) {
+                        return currentDuration;
+                    }
+                })
+                .build();
+        List<SeckillVoucher> vouchers = seckillVoucherService.query()
+                .gt("end_time", LocalDateTime.now())
+                .list();
+        for (SeckillVoucher voucher : vouchers) {
+            preload(voucher, null);
+        }
+        log.info("预热秒杀券元数据{}个", vouchers.size());
+    }
+
+    /**
+     * 写入Redis元数据和本地副本
+     * @param voucher 秒杀券
+     * @param shards 库存分片数，为空时保留Redis中已有的值，本地副本按库存分片数key读取
+     */
+    public void preload(SeckillVoucher voucher, Integer shards) {
+        long begin = toMillis(voucher.getBeginTime());
+        long end = toMillis(voucher.getEndTime());
+        Map<String, String> meta = new HashMap<>(8);
+        meta.put("begin", String.valueOf(begin));
+        meta.put("end", String.valueOf(end));
+        meta.put("stock", String.valueOf(voucher.getStock()));
+        if (shards != null) {
+            meta.put("shards", String.valueOf(shards));
+        }
+        stringRedisTemplate.opsForHash().putAll(SeckillKeys.metaKey(voucher.getVoucherId()), meta);
+        if (shards == null) {
+            shards = readShards(voucher.getVoucherId());
+        }
+        localMeta.put(voucher.getVoucherId(), new SeckillMeta(begin, end, shards));
+    }
+
+    /**
+     * 获取秒杀时间窗口和库存分片数，本地没有时从Redis加载一次（其他节点新建的秒杀券）
+     */
+    public SeckillMeta getMeta(Long voucherId) {
+        return localMeta.get(voucherId, this::loadMeta);
+    }
+
+    private SeckillMeta loadMeta(Long voucherId) {
+        List<Object> values = stringRedisTemplate.opsForHash()
+                .multiGet(SeckillKeys.metaKey(voucherId), Arrays.asList("begin", "end"));
+        int shards = readShards(voucherId);
+        if (values.get(0) == null || values.get(1) == null) {
+            // 未预热的券不限制时间，短时间缓存，避免同一张券的每个请求都查Redis
+            return new SeckillMeta(Long.MIN_VALUE, Long.MAX_VALUE, shards);
+        }
+        return new SeckillMeta(Long.parseLong(values.get(0).toString()), Long.parseLong(values.get(1).toString()), shards);
+    }
+
+    /**
+     * 丢弃本地副本，秒杀脚本发现分片数与本地不一致时调用，下次使用时重新加载
+     */
+    public void evict(Long voucherId) {
+        localMeta.invalidate(voucherId);
+    }
+
+    private int readShards(Long voucherId) {
+        String shards = stringRedisTemplate.opsForValue().get(SeckillKeys.shardsKey(voucherId));
+        return shards == null ? 1 : Math.max(1, Integer.parseInt(shards));
+    }
+
+    private static long toMillis(LocalDateTime time) {
+        return time.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+    }
+}
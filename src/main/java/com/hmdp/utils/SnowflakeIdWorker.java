@@ -0,0 +1,283 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.lang.UUID;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import java.util.Collections;
+import java.util.Set;
+import java.util.TimeZone;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import static com.hmdp.utils.RedisConstants.ID_WORKER_KEY;
+
+/**
+ * 本地ID生成器：完全在本地计算ID，不访问网络，通过 hmdp.id.snowflake-prefixes 按业务前缀启用。
+ * <p>
+ * 与RedisIdWorker使用相同的布局，高位是时间戳（秒），低32位为：标志位(1) + workerId(9) + 毫秒(10) + 毫秒内序列号(12)，
+ * 标志位固定为1，Redis自增的序列号每天不会超过2^31，两种生成器的ID不会重复，并且同样按秒有序。
+ * <p>
+ * workerId启动时从Redis租用，由独立线程定期续约；租约在本地到期或者被其他节点占用后，
+ * 以及时钟回拨超过允许范围时，本生成器暂停发号，RedisIdWorker改用Redis序列号，直到重新租到workerId、时钟追上。
+ * <p>
+ * 租约中记录持有者的发号时间上限，续约、释放时更新，租约释放或过期后仍然保留。租到workerId的节点
+ * 在本地时钟越过上一个持有者的发号时间之前不发号，落后超过 max-clock-wait 时换一个workerId
+ */
+@Slf4j
+@Component
+public class SnowflakeIdWorker {
+
+    private static final long BEGIN_TIMESTAMP = 1718496000L;
+    private static final int COUNT_BITS = 32;
+    private static final int WORKER_BITS = 9;
+    private static final int MILLIS_BITS = 10;
+    private static final int SEQUENCE_BITS = 12;
+    private static final long MAX_WORKERS = 1L << WORKER_BITS;
+    private static final long SEQUENCE_MASK = (1L << SEQUENCE_BITS) - 1;
+    private static final long FLAG = 1L << (WORKER_BITS + MILLIS_BITS + SEQUENCE_BITS);
+
+    private static final DefaultRedisScript<Long> ACQUIRE_SCRIPT;
+    private static final DefaultRedisScript<Long> RENEW_SCRIPT;
+    private static final DefaultRedisScript<Long> RELEASE_SCRIPT;
+    static {
+        ACQUIRE_SCRIPT = new DefaultRedisScript<>();
+        ACQUIRE_SCRIPT.setLocation(new ClassPathResource("id_worker_acquire.lua"));
+        ACQUIRE_SCRIPT.setResultType(Long.class);
+        RENEW_SCRIPT = new DefaultRedisScript<>();
+        RENEW_SCRIPT.setLocation(new ClassPathResource("id_worker_renew.lua"));
+        RENEW_SCRIPT.setResultType(Long.class);
+        RELEASE_SCRIPT = new DefaultRedisScript<>();
+        RELEASE_SCRIPT.setLocation(new ClassPathResource("id_worker_release.lua"));
+        RELEASE_SCRIPT.setResultType(Long.class);
+    }
+
+    // 使用本地生成的业务前缀
+    @Value("${hmdp.id.snowflake-prefixes:}")
+    private Set<String> prefixes;
+    // workerId租约时长（毫秒）
+    @Value("${hmdp.id.worker-lease:30000}")
+    private long leaseTtl;
+    // 续约间隔（毫秒），需要明显小于租约时长
+    @Value("${hmdp.id.worker-heartbeat:10000}")
+    private long heartbeat;
+    // 允许等待的时钟回拨（毫秒），回拨更多时暂停本地发号
+    @Value("${hmdp.id.max-backward:10}")
+    private long maxBackward;
+    // 租用workerId时允许的时钟落后（毫秒），本地时钟落后上一个持有者更多时换一个workerId
+    @Value("${hmdp.id.max-clock-wait:5000}")
+    private long maxClockWait;
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private SeckillMetrics seckillMetrics;
+
+    private final String token = UUID.randomUUID().toString(true);
+    private ScheduledExecutorService heartbeatExecutor;
+
+    // 当前持有的workerId，-1表示没有
+    private volatile long workerId = -1;
+    // 租约在本地的到期时间，按续约请求发出的时间计算，比Redis中的租约先到期
+    private volatile long leaseExpiresAt;
+    // 上次发号的时间（毫秒，按本地时区）和序列号
+    private long lastMillis = -1;
+    private long sequence;
+    // 上一个持有者的发号时间上限（毫秒，按本地时区），时钟越过它之后才能发号
+    private long notBefore;
+    // 是否处于暂停发号状态，只在状态变化时打日志
+    private volatile boolean paused;
+
+    @PostConstruct
+    private void init() {
+        if (prefixes.isEmpty()) {
+            return;
+        }
+        heartbeat();
+        heartbeatExecutor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "id-worker-heartbeat");
+            thread.setDaemon(true);
+            return thread;
+        });
+        heartbeatExecutor.scheduleWithFixedDelay(this::heartbeat, heartbeat, heartbeat, TimeUnit.MILLISECONDS);
+        seckillMetrics.gauge("idWorkerId", () -> workerId);
+    }
+
+    @PreDestroy
+    private void destroy() {
+        if (heartbeatExecutor == null) {
+            return;
+        }
+        heartbeatExecutor.shutdownNow();
+        long id = workerId;
+        workerId = -1;
+        if (id >= 0) {
+            try {
+                stringRedisTemplate.execute(RELEASE_SCRIPT, Collections.singletonList(ID_WORKER_KEY + id),
+                        token, String.valueOf(issuedUntil(false)));
+            } catch (Exception e) {
+                log.warn("释放workerId失败，workerId={}", id, e);
+            }
+        }
+    }
+
+    /**
+     * 该业务前缀是否使用本地生成
+     */
+    public boolean supports(String keyPrefix) {
+        return prefixes.contains(keyPrefix);
+    }
+
+    /**
+     * 生成ID
+     * @return 没有有效的workerId或者时钟回拨过多时返回-1，由调用方改用Redis序列号
+     */
+    public synchronized long tryNextId() {
+        // 1.检查租约
+        long now = System.currentTimeMillis();
+        long id = workerId;
+        if (id < 0 || now >= leaseExpiresAt) {
+            pause("没有有效的workerId");
+            return -1;
+        }
+        // 2.生成时间戳，与RedisIdWorker一样按本地时区计算
+        long millis = now + TimeZone.getDefault().getOffset(now);
+        if (millis <= notBefore) {
+            pause("时钟落后于workerId的上一个持有者" + (notBefore - millis + 1) + "ms");
+            return -1;
+        }
+        if (millis < lastMillis) {
+            long backward = lastMillis - millis;
+            if (backward > maxBackward) {
+                pause("时钟回拨" + backward + "ms");
+                return -1;
+            }
+            // 小幅回拨，等时钟追上
+            millis = waitUntil(lastMillis);
+        }
+        // 3.生成序列号，同一毫秒内用完后等到下一毫秒
+        if (millis == lastMillis) {
+            sequence = (sequence + 1) & SEQUENCE_MASK;
+            if (sequence == 0) {
+                millis = waitUntil(lastMillis + 1);
+            }
+        } else {
+            sequence = 0;
+        }
+        lastMillis = millis;
+        resume();
+        // 4.拼接返回
+        long timestamp = millis / 1000 - BEGIN_TIMESTAMP;
+        return timestamp << COUNT_BITS | FLAG
+                | id << (MILLIS_BITS + SEQUENCE_BITS)
+                | (millis % 1000) << SEQUENCE_BITS
+                | sequence;
+    }
+
+    /**
+     * 本节点的发号时间上限（毫秒，按本地时区）
+     * @param renewing 续约时为true，租约期内还会继续发号，取最后发号时间与当前时间中较大的一个
+     */
+    private synchronized long issuedUntil(boolean renewing) {
+        long last = Math.max(lastMillis, notBefore);
+        if (!renewing) {
+            return Math.max(last, 0);
+        }
+        long now = System.currentTimeMillis();
+        return Math.max(last, now + TimeZone.getDefault().getOffset(now));
+    }
+
+    private synchronized void startAfter(long millis) {
+        notBefore = Math.max(notBefore, millis);
+    }
+
+    private long waitUntil(long target) {
+        long millis;
+        do {
+            LockSupport.parkNanos(100_000L);
+            long now = System.currentTimeMillis();
+            millis = now + TimeZone.getDefault().getOffset(now);
+        } while (millis < target);
+        return millis;
+    }
+
+    private void pause(String reason) {
+        if (!paused) {
+            paused = true;
+            log.warn("本地ID生成暂停，改用Redis序列号：{}", reason);
+        }
+        seckillMetrics.increment("idFallbacks");
+    }
+
+    private void resume() {
+        if (paused) {
+            paused = false;
+            log.info("本地ID生成恢复，workerId={}", workerId);
+        }
+    }
+
+    private void heartbeat() {
+        try {
+            long id = workerId;
+            if (id < 0) {
+                acquire();
+                return;
+            }
+            // 1.续约，按发出请求的时间计算本地到期时间
+            long start = System.currentTimeMillis();
+            Long renewed = stringRedisTemplate.execute(RENEW_SCRIPT, Collections.singletonList(ID_WORKER_KEY + id),
+                    token, String.valueOf(leaseTtl), String.valueOf(issuedUntil(true)));
+            if (renewed != null && renewed == 1) {
+                leaseExpiresAt = start + leaseTtl;
+                return;
+            }
+            // 2.租约已经过期并被其他节点占用，重新租用
+            log.warn("workerId租约已失效，重新租用，workerId={}", id);
+            workerId = -1;
+            acquire();
+        } catch (Exception e) {
+            // Redis不可用时租约在本地到期后暂停发号
+            log.error("workerId续约失败", e);
+        }
+    }
+
+    private void acquire() {
+        // 从随机位置开始尝试，减少节点同时启动时的冲突
+        long offset = ThreadLocalRandom.current().nextLong(MAX_WORKERS);
+        for (long i = 0; i < MAX_WORKERS; i++) {
+            long id = (offset + i) % MAX_WORKERS;
+            long start = System.currentTimeMillis();
+            Long previous = stringRedisTemplate.execute(ACQUIRE_SCRIPT,
+                    Collections.singletonList(ID_WORKER_KEY + id), token, String.valueOf(leaseTtl));
+            if (previous == null || previous < 0) {
+                continue;
+            }
+            // 本地时钟落后上一个持有者太多，归还后换一个workerId，保留它的发号时间
+            long behind = previous - (start + TimeZone.getDefault().getOffset(start));
+            if (behind > maxClockWait) {
+                log.warn("本地时钟落后workerId={}的上一个持有者{}ms，换一个workerId", id, behind);
+                stringRedisTemplate.execute(RELEASE_SCRIPT, Collections.singletonList(ID_WORKER_KEY + id),
+                        token, String.valueOf(previous));
+                continue;
+            }
+            // 时钟越过上一个持有者的发号时间之前暂停发号
+            startAfter(previous);
+            leaseExpiresAt = start + leaseTtl;
+            workerId = id;
+            log.info("租用workerId={}", id);
+            return;
+        }
+        log.error("没有空闲的workerId，本地ID生成不可用");
+    }
+}
@@ -0,0 +1,36 @@
+package com.hmdp.utils;
+
+/**
+ * 令牌桶：按固定速率补充令牌，桶容量决定允许的突发量
+ */
+public class TokenBucket {
+
+    private final long capacity;
+    // 每纳秒补充的令牌数
+    private final double refillPerNano;
+
+    private double tokens;
+    private long lastRefill;
+
+    /**
+     * @param ratePerSecond 每秒补充的令牌数
+     * @param capacity 桶容量
+     */
+    public TokenBucket(double ratePerSecond, long capacity) {
+        this.capacity = capacity;
+        this.refillPerNano = ratePerSecond / 1_000_000_000D;
+        this.tokens = capacity;
+        this.lastRefill = System.nanoTime();
+    }
+
+    public synchronized boolean tryAcquire() {
+        long now = System.nanoTime();
+        tokens = Math.min(capacity, tokens + (now - lastRefill) * refillPerNano);
+        lastRefill = now;
+        if (tokens < 1) {
+            return false;
+        }
+        tokens -= 1;
+        return true;
+    }
+}
@@ -1274,7 +1274,9 @@ CREATE TABLE `tb_voucher_order`  (
   `use_time` timestamp NULL DEFAULT NULL COMMENT '核销时间',
   `refund_time` timestamp NULL DEFAULT NULL COMMENT '退款时间',
   `update_time` timestamp NOT NULL DEFAULT CURRENT_TIMESTAMP ON UPDATE CURRENT_TIMESTAMP COMMENT '更新时间',
-  PRIMARY KEY (`id`) USING BTREE
+  `live` tinyint(1) UNSIGNED NULL DEFAULT 1 COMMENT '有效订单为1，取消后置为NULL，不再占用一人一单的唯一索引',
+  PRIMARY KEY (`id`) USING BTREE,
+  UNIQUE INDEX `uk_voucher_user`(`voucher_id`, `user_id`, `live`) USING BTREE COMMENT '一人一单，只约束未取消的订单，按优惠券对账时也使用该索引'
 ) ENGINE = InnoDB CHARACTER SET = utf8mb4 COLLATE = utf8mb4_general_ci ROW_FORMAT = Compact;
 
 -- ----------------------------
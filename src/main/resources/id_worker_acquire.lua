@@ -0,0 +1,37 @@
+-- 租用workerId：租约不存在、已释放或者已过期时占用
+-- 租约值为 节点标识:最后发号时间:到期时间，最后发号时间按持有节点的时钟（本地时区）计算，到期时间按Redis时间计算，
+-- 释放后节点标识为空、到期时间为0。租约key不设置过期时间，持有者的最后发号时间在释放、过期后仍然保留
+-- 返回上一个持有者发号时间的上限（毫秒），本节点在时钟越过它之前不能发号；已被占用时返回-1
+-- 1.参数列表
+-- 1.1.本节点标识
+local token = ARGV[1]
+-- 1.2.租约时长（毫秒）
+local ttl = tonumber(ARGV[2])
+
+-- 1.3.workerId租约key
+local leaseKey = KEYS[1]
+
+-- 2.判断租约是否空闲
+local time = redis.call('time')
+local now = tonumber(time[1]) * 1000 + math.floor(tonumber(time[2]) / 1000)
+local last = 0
+local value = redis.call('get', leaseKey)
+if (value) then
+    local holder, lastMillis, expiresAt = string.match(value, '^([^:]*):(%d+):(%d+)$')
+    -- 旧格式的租约（只有节点标识）带有过期时间，等它自然过期
+    if (not holder) then
+        return -1
+    end
+    -- 仍在租约期内
+    if (holder ~= '' and tonumber(expiresAt) > now) then
+        return -1
+    end
+    last = tonumber(lastMillis)
+    -- 过期前没有释放，上一个持有者在本地租约到期前都可能发号
+    if (holder ~= '') then
+        last = last + ttl
+    end
+end
+-- 3.占用租约
+redis.call('set', leaseKey, token .. ':' .. string.format('%d', last) .. ':' .. string.format('%d', now + ttl))
+return last
@@ -0,0 +1,18 @@
+-- 释放workerId：只释放本节点持有的租约，保留最后发号时间供下一个持有者判断时钟
+-- 1.参数列表
+-- 1.1.本节点标识
+local token = ARGV[1]
+-- 1.2.本节点最后发号时间（毫秒，本地时区）
+local last = ARGV[2]
+
+-- 1.3.workerId租约key
+local leaseKey = KEYS[1]
+
+-- 2.判断租约是否属于本节点
+local value = redis.call('get', leaseKey)
+if (not value or string.match(value, '^([^:]*):') ~= token) then
+    return 0
+end
+-- 3.清空节点标识，到期时间为0
+redis.call('set', leaseKey, ':' .. last .. ':0')
+return 1
@@ -0,0 +1,23 @@
+-- 续约workerId：只有租约仍属于本节点时才延长到期时间，否则说明租约已过期并被其他节点占用
+-- 续约时记录本节点的发号时间上限，租约过期后新的持有者据此判断自己的时钟是否落后
+-- 1.参数列表
+-- 1.1.本节点标识
+local token = ARGV[1]
+-- 1.2.租约时长（毫秒）
+local ttl = tonumber(ARGV[2])
+-- 1.3.本节点最后发号时间与当前时间中较大的一个（毫秒，本地时区）
+local last = ARGV[3]
+
+-- 1.4.workerId租约key
+local leaseKey = KEYS[1]
+
+-- 2.判断租约是否属于本节点
+local value = redis.call('get', leaseKey)
+if (not value or string.match(value, '^([^:]*):') ~= token) then
+    return 0
+end
+-- 3.延长租约
+local time = redis.call('time')
+local now = tonumber(time[1]) * 1000 + math.floor(tonumber(time[2]) / 1000)
+redis.call('set', leaseKey, token .. ':' .. last .. ':' .. string.format('%d', now + ttl))
+return 1
@@ -1,33 +1,96 @@
+-- 批量秒杀：同一张券在极短时间窗口内的多个请求合并为一次脚本调用，按顺序逐个判断
 -- 1.参数列表
 -- 1.1.优惠券id
 local voucherId = ARGV[1]
--- 1.2.用户id
-local userId = ARGV[2]
--- 1.3.订单id
-local orderId = ARGV[3]
+-- 1.2.支付超时时间（毫秒），为0时不登记支付超时
+local payTimeout = tonumber(ARGV[2])
+-- 1.3.之后依次为 用户id、订单id 成对出现
 
--- 2.数据key
+-- 2.数据key，全部通过KEYS传入，带有相同的hash tag，在集群中位于同一个slot
 -- 2.1.库存key
-local stockKey = 'seckill:stock:' .. voucherId
+local stockKey = KEYS[1]
 -- 2.2.订单key
-local orderKey = 'seckill:order:' .. voucherId
+local orderKey = KEYS[2]
+-- 2.3.库存分片数key
+local shardsKey = KEYS[3]
+-- 2.4.元数据key
+local metaKey = KEYS[4]
+-- 2.5.消息队列key
+local streamKey = KEYS[5]
+-- 2.6.支付超时队列key
+local timeoutKey = KEYS[6]
+-- 2.7.之后依次为各分片库存key，不分片时没有
+local shards = #KEYS - 6
 
--- 3.脚本业务
--- 3.1.判断库存是否充足 get stockKey
-if(tonumber(redis.call('get', stockKey)) <= 0) then
-    -- 3.2.库存不足，返回1
-    return 1
+-- 3.脚本业务，返回每个用户的结果：0成功 1库存不足 2重复下单 3尚未开始 4已经结束 5分片数与调用方不一致
+local results = {}
+local count = (#ARGV - 2) / 2
+local time = redis.call('time')
+local now = tonumber(time[1]) * 1000 + math.floor(tonumber(time[2]) / 1000)
+-- 3.0.判断是否在秒杀时间内，未预热元数据的老券不校验
+local window = redis.call('hmget', metaKey, 'begin', 'end')
+if(window[1] and window[2]) then
+    local code = nil
+    if(now < tonumber(window[1])) then
+        -- 尚未开始，返回3
+        code = 3
+    elseif(now > tonumber(window[2])) then
+        -- 已经结束，返回4
+        code = 4
+    end
+    if(code) then
+        for i = 1, count do
+            results[i] = code
+        end
+        return results
+    end
 end
--- 3.2.判断用户是否下单 SISMEMBER orderKey userId
-if(redis.call('sismember', orderKey, userId) == 1) then
-    -- 3.3.存在，说明是重复下单，返回2
-    return 2
+
+-- 3.0.1.调用方按本地缓存的分片数传入分片key，与Redis中的分片数不一致时全部返回5，由调用方重新加载后重试
+if(math.max(shards, 1) ~= (tonumber(redis.call('get', shardsKey)) or 1)) then
+    for i = 1, count do
+        results[i] = 5
+    end
+    return results
+end
+
+for i = 1, count do
+    local userId = ARGV[i * 2 + 1]
+    local orderId = ARGV[i * 2 + 2]
+    local key = nil
+    -- 3.1.库存分片时，按用户id选定自己的分片，自己的分片卖完才依次探测相邻分片
+    if(shards > 1) then
+        local home = tonumber(userId) % shards
+        for j = 0, shards - 1 do
+            local shardKey = KEYS[7 + (home + j) % shards]
+            if((tonumber(redis.call('get', shardKey)) or 0) > 0) then
+                key = shardKey
+                break
+            end
+        end
+    -- 3.2.判断库存是否充足 get stockKey
+    elseif((tonumber(redis.call('get', stockKey)) or 0) > 0) then
+        key = stockKey
+    end
+    if(not key) then
+        -- 库存不足，返回1
+        results[i] = 1
+    -- 3.3.判断用户是否下单 SISMEMBER orderKey userId
+    elseif(redis.call('sismember', orderKey, userId) == 1) then
+        -- 存在，说明是重复下单，返回2
+        results[i] = 2
+    else
+        -- 3.4.扣库存 incrby stockKey -1
+        redis.call('incrby', key, -1)
+        -- 3.5.下单（保存用户）sadd orderKey userId
+        redis.call('sadd', orderKey, userId)
+        -- 3.6.发送消息到队列中， XADD stream.orders:{p} * k1 v1 k2 v2 ...
+        redis.call('xadd', streamKey, '*', 'userId', userId, 'voucherId', voucherId, 'id', orderId)
+        -- 3.7.登记支付超时 zadd timeoutKey 到期时间 订单id:优惠券id:用户id
+        if(payTimeout > 0) then
+            redis.call('zadd', timeoutKey, now + payTimeout, orderId .. ':' .. voucherId .. ':' .. userId)
+        end
+        results[i] = 0
+    end
 end
--- 3.4.扣库存 incrby stockKey -1
-redis.call('incrby', stockKey, -1)
--- 3.5.下单（保存用户）sadd orderKey userId
-redis.call('sadd', orderKey, userId)
--- 消息队列一般用MQ
--- 3.6.发送消息到队列中， XADD stream.orders * k1 v1 k2 v2 ...
--- redis.call('xadd', 'stream.orders', '*', 'userId', userId, 'voucherId', voucherId, 'id', orderId)
-return 0
\ No newline at end of file
+return results
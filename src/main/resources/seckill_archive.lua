@@ -0,0 +1,19 @@
+-- 归档秒杀券的Redis状态：统计各key占用的内存后删除，返回回收的字节数
+-- 1.参数列表
+-- 1.1.优惠券id
+local voucherId = ARGV[1]
+
+-- 1.2.数据key：分片券集合，之后依次为该券的所有key（库存、库存分片数、已下单用户、元数据、各分片库存）
+local shardedKey = KEYS[1]
+
+-- 2.统计内存并删除，大集合用unlink在后台释放
+local bytes = 0
+for i = 2, #KEYS do
+    local usage = redis.call('memory', 'usage', KEYS[i])
+    if(usage) then
+        bytes = bytes + usage
+        redis.call('unlink', KEYS[i])
+    end
+end
+redis.call('srem', shardedKey, voucherId)
+return bytes
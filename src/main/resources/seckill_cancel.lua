@@ -0,0 +1,35 @@
+-- 取消超时未支付的订单：归还库存、允许用户重新下单、删除超时任务
+-- 以删除超时任务为准，同一订单重复执行只会归还一次库存
+-- 1.参数列表
+-- 1.1.超时任务 订单id:优惠券id:用户id
+local member = ARGV[1]
+-- 1.2.优惠券id
+local voucherId = ARGV[2]
+-- 1.3.用户id
+local userId = ARGV[3]
+-- 1.4.是否保留已下单用户，用户还有其他有效订单时为1
+local keepUser = ARGV[4]
+
+-- 1.5.数据key：支付超时队列、归还的库存key、已下单用户、未落库次数，分片时还有分片券集合
+-- 分片时归还的库存key是用户的首选分片，再由均衡任务分摊
+local timeoutKey = KEYS[1]
+local stockKey = KEYS[2]
+local orderKey = KEYS[3]
+local missingKey = KEYS[4]
+local shardedKey = KEYS[5]
+
+-- 2.删除超时任务，已经删除说明处理过了
+redis.call('hdel', missingKey, member)
+if(redis.call('zrem', timeoutKey, member) == 0) then
+    return 0
+end
+-- 3.归还库存
+redis.call('incrby', stockKey, 1)
+if(shardedKey) then
+    redis.call('sadd', shardedKey, voucherId)
+end
+-- 4.从已下单用户中删除，允许重新下单
+if(keepUser ~= '1') then
+    redis.call('srem', orderKey, userId)
+end
+return 1
@@ -0,0 +1,21 @@
+-- 认领到期的支付超时任务：把到期任务的score推后一个租约时长再返回，
+-- 多个节点同时轮询时同一任务只会被一个节点取走，节点宕机时租约到期后被重新认领
+-- 1.参数列表
+-- 1.1.单次最多认领的任务数
+local limit = tonumber(ARGV[1])
+-- 1.2.租约时长（毫秒）
+local lease = tonumber(ARGV[2])
+
+-- 1.3.支付超时队列key
+local timeoutKey = KEYS[1]
+
+local time = redis.call('time')
+local now = tonumber(time[1]) * 1000 + math.floor(tonumber(time[2]) / 1000)
+
+-- 2.取出到期的任务 zrangebyscore timeoutKey -inf now limit 0 n
+local members = redis.call('zrangebyscore', timeoutKey, '-inf', now, 'limit', 0, limit)
+-- 3.推后score，租约内不会被再次认领
+for i = 1, #members do
+    redis.call('zadd', timeoutKey, 'XX', now + lease, members[i])
+end
+return members
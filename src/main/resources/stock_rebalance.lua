@@ -0,0 +1,45 @@
+-- 把优惠券剩余的分片库存重新平均分配到各分片，避免库存滞留在少数分片导致大量探测
+-- 1.数据key：库存分片数key，之后依次为各分片库存key
+local shards = tonumber(redis.call('get', KEYS[1]))
+if(not shards or shards <= 1) then
+    return -1
+end
+-- 调用方读取分片数后生成分片key，分片数不一致时不做处理
+if(shards ~= #KEYS - 1) then
+    return redis.error_reply('shards mismatch')
+end
+
+-- 2.统计各分片库存
+local stocks = {}
+local total = 0
+local empty = 0
+for i = 1, shards do
+    local s = tonumber(redis.call('get', KEYS[i + 1])) or 0
+    if(s < 0) then
+        s = 0
+    end
+    stocks[i] = s
+    total = total + s
+    if(s == 0) then
+        empty = empty + 1
+    end
+end
+
+-- 3.没有空分片，或已经卖完，无需均衡，返回剩余总库存
+if(empty == 0 or total == 0) then
+    return total
+end
+
+-- 4.平均分配，余数依次分给前面的分片
+local avg = math.floor(total / shards)
+local remainder = total % shards
+for i = 1, shards do
+    local s = avg
+    if(i <= remainder) then
+        s = s + 1
+    end
+    if(s ~= stocks[i]) then
+        redis.call('set', KEYS[i + 1], s)
+    end
+end
+return total
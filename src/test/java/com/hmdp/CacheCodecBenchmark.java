@@ -0,0 +1,128 @@
+package com.hmdp;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.Logger;
+import com.hmdp.entity.Shop;
+import com.hmdp.entity.Voucher;
+import com.hmdp.utils.BinaryCacheCodec;
+import com.hmdp.utils.CacheCodec;
+import com.hmdp.utils.JsonCacheCodec;
+import com.hmdp.utils.RedisData;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.slf4j.LoggerFactory;
+
+import java.time.LocalDateTime;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 缓存编解码基准测试：对比JSON和二进制格式对商铺、优惠券的编码、解码、只读过期时间的耗时，编码后的大小在准备阶段打印。
+ * <p>
+ * 运行：mvn test -P benchmark
+ */
+@Tag("benchmark")
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 3, time = 2)
+@Fork(1)
+public class CacheCodecBenchmark {
+
+    @Param({"json", "binary"})
+    private String codec;
+
+    @Param({"shop", "voucher"})
+    private String entity;
+
+    private CacheCodec cacheCodec;
+    private Object value;
+    private Class<?> type;
+    private RedisData redisData;
+    private byte[] bytes;
+    private byte[] bytesWithExpire;
+
+    @Setup(org.openjdk.jmh.annotations.Level.Trial)
+    public void setUp() {
+        ((Logger) LoggerFactory.getLogger(Logger.ROOT_LOGGER_NAME)).setLevel(Level.INFO);
+        cacheCodec = "json".equals(codec) ? new JsonCacheCodec() : new BinaryCacheCodec();
+        value = "shop".equals(entity) ? shop() : voucher();
+        type = value.getClass();
+        redisData = new RedisData();
+        redisData.setData(value);
+        redisData.setExpireTime(LocalDateTime.now().plusMinutes(30));
+        redisData.setDelta(15);
+        bytes = cacheCodec.encode(value);
+        bytesWithExpire = cacheCodec.encodeWithExpire(redisData);
+        System.out.printf("%n%s %s: %d bytes, with expire %d bytes%n",
+                codec, entity, bytes.length, bytesWithExpire.length);
+    }
+
+    private static Shop shop() {
+        Shop shop = new Shop();
+        shop.setId(1L);
+        shop.setName("103茶餐厅");
+        shop.setTypeId(1L);
+        shop.setImages("https://qcloud.dpfile.com/pc/jiclIsCKmOI2arxKN1Uf0Hx3PucIJH8q0QSz-Z8llzcN56-_QiKuOvyio1OOxsRtFoXqu0G3iT2T27qat3WhLVEuLYk00OmSS1IdNpm8K8sG4JN9RIm2mTKcbLtc2o2vfCF2ubeXzk49OsGrXt_KYDCngOyCwZK-s3fqawWswzk.jpg");
+        shop.setArea("大关");
+        shop.setAddress("金华路锦昌文华苑29号");
+        shop.setX(120.149192);
+        shop.setY(30.316078);
+        shop.setAvgPrice(80L);
+        shop.setSold(4215);
+        shop.setComments(3035);
+        shop.setScore(37);
+        shop.setOpenHours("10:00-22:00");
+        shop.setCreateTime(LocalDateTime.of(2021, 12, 22, 18, 10, 39));
+        shop.setUpdateTime(LocalDateTime.of(2022, 1, 13, 17, 32, 19));
+        return shop;
+    }
+
+    private static Voucher voucher() {
+        Voucher voucher = new Voucher();
+        voucher.setId(2L);
+        voucher.setShopId(1L);
+        voucher.setTitle("100元代金券");
+        voucher.setSubTitle("周一至周五均可使用");
+        voucher.setRules("全场通用\\n无需预约\\n可无限叠加\\不兑现、不找零\\n仅限堂食");
+        voucher.setPayValue(8000L);
+        voucher.setActualValue(10000L);
+        voucher.setType(1);
+        voucher.setStatus(1);
+        voucher.setStock(100);
+        voucher.setBeginTime(LocalDateTime.of(2022, 1, 26, 10, 9, 17));
+        voucher.setEndTime(LocalDateTime.of(2022, 1, 26, 23, 9, 4));
+        voucher.setCreateTime(LocalDateTime.of(2022, 1, 4, 9, 42, 39));
+        voucher.setUpdateTime(LocalDateTime.of(2022, 1, 4, 9, 43, 31));
+        return voucher;
+    }
+
+    @Benchmark
+    public byte[] encode() {
+        return cacheCodec.encode(value);
+    }
+
+    @Benchmark
+    public Object decode() {
+        return cacheCodec.decode(bytes, type);
+    }
+
+    @Benchmark
+    public RedisData decodeWithExpire() {
+        return cacheCodec.decodeWithExpire(bytesWithExpire, type);
+    }
+
+    @Benchmark
+    public RedisData peekExpire() {
+        return cacheCodec.peekExpire(bytesWithExpire);
+    }
+
+    @Test
+    void benchmark() throws RunnerException {
+        new Runner(new OptionsBuilder().include(CacheCodecBenchmark.class.getSimpleName()).build()).run();
+    }
+}
@@ -0,0 +1,74 @@
+package com.hmdp;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.Logger;
+import com.hmdp.utils.RedisIdWorker;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.slf4j.LoggerFactory;
+import org.springframework.data.redis.connection.lettuce.LettuceConnectionFactory;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import redis.embedded.RedisServer;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * ID生成基准测试：对比每次访问Redis（segmentSize=0）和号段模式的吞吐量，Redis使用内嵌的redis-server。
+ * <p>
+ * 运行：mvn test -P benchmark
+ */
+@Tag("benchmark")
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 3, time = 2)
+@Threads(8)
+@Fork(1)
+public class RedisIdWorkerBenchmark {
+
+    @Param({"0", "1000"})
+    private int segmentSize;
+
+    private RedisServer redisServer;
+    private LettuceConnectionFactory connectionFactory;
+    private RedisIdWorker redisIdWorker;
+
+    @Setup(org.openjdk.jmh.annotations.Level.Trial)
+    public void setUp() throws IOException {
+        // 基准测试进程不经过Spring Boot，关掉lettuce的DEBUG日志
+        ((Logger) LoggerFactory.getLogger(Logger.ROOT_LOGGER_NAME)).setLevel(Level.INFO);
+        int port;
+        try (ServerSocket socket = new ServerSocket(0)) {
+            port = socket.getLocalPort();
+        }
+        redisServer = RedisServer.newRedisServer().port(port).setting("save \"\"").build();
+        redisServer.start();
+        connectionFactory = new LettuceConnectionFactory("127.0.0.1", port);
+        connectionFactory.afterPropertiesSet();
+        StringRedisTemplate stringRedisTemplate = new StringRedisTemplate(connectionFactory);
+        redisIdWorker = new RedisIdWorker(stringRedisTemplate, segmentSize, 0.8);
+    }
+
+    @TearDown(org.openjdk.jmh.annotations.Level.Trial)
+    public void tearDown() throws IOException {
+        connectionFactory.destroy();
+        redisServer.stop();
+    }
+
+    @Benchmark
+    public long nextId() {
+        return redisIdWorker.nextId("order");
+    }
+
+    @Test
+    void benchmark() throws RunnerException {
+        new Runner(new OptionsBuilder().include(RedisIdWorkerBenchmark.class.getSimpleName()).build()).run();
+    }
+}
@@ -0,0 +1,264 @@
+package com.hmdp;
+
+import cn.hutool.json.JSONObject;
+import cn.hutool.json.JSONUtil;
+import com.hmdp.dto.Result;
+import com.hmdp.entity.Voucher;
+import com.hmdp.utils.RedisConstants;
+import com.hmdp.utils.SeckillKeys;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.web.server.LocalServerPort;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.http.HttpEntity;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpMethod;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.test.context.ActiveProfiles;
+import org.springframework.test.context.DynamicPropertyRegistry;
+import org.springframework.test.context.DynamicPropertySource;
+import org.springframework.web.client.RestTemplate;
+import redis.embedded.RedisServer;
+
+import javax.annotation.Resource;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.time.LocalDateTime;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+
+/**
+ * 秒杀压测：启动完整应用，Redis使用内嵌的redis-server，MySQL使用H2兼容模式的内存库，
+ * 模拟用户并发调用 /voucher-order/seckill/{id}，统计吞吐量、延迟分位数、超卖数和重复下单数。
+ * <p>
+ * 运行：mvn test -P loadtest -Dloadtest.users=5000 -Dloadtest.concurrency=200 -Dloadtest.stock=1000
+ */
+@Tag("loadtest")
+@ActiveProfiles("loadtest")
+@SpringBootTest(webEnvironment = SpringBootTest.WebEnvironment.RANDOM_PORT)
+class SeckillLoadTest {
+
+    private static final int USERS = Integer.getInteger("loadtest.users", 2000);
+    private static final int CONCURRENCY = Integer.getInteger("loadtest.concurrency", 100);
+    private static final int STOCK = Integer.getInteger("loadtest.stock", 500);
+    private static final int REQUESTS_PER_USER = Integer.getInteger("loadtest.requests-per-user", 2);
+
+    private static final RedisServer REDIS_SERVER;
+    private static final int REDIS_PORT;
+    static {
+        try {
+            REDIS_PORT = freePort();
+            REDIS_SERVER = RedisServer.newRedisServer().port(REDIS_PORT).setting("save \"\"").build();
+            REDIS_SERVER.start();
+        } catch (IOException e) {
+            throw new IllegalStateException("启动内嵌Redis失败", e);
+        }
+    }
+
+    @DynamicPropertySource
+    static void redisProperties(DynamicPropertyRegistry registry) {
+        registry.add("spring.redis.host", () -> "127.0.0.1");
+        registry.add("spring.redis.port", () -> REDIS_PORT);
+    }
+
+    @AfterAll
+    static void stopRedis() throws IOException {
+        REDIS_SERVER.stop();
+    }
+
+    @LocalServerPort
+    private int port;
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private JdbcTemplate jdbcTemplate;
+
+    @Test
+    void seckill() throws Exception {
+        System.setProperty("http.maxConnections", String.valueOf(CONCURRENCY));
+        RestTemplate rest = new RestTemplate();
+        String baseUrl = "http://127.0.0.1:" + port;
+
+        // 1.新建秒杀券，秒杀已经开始
+        Voucher voucher = new Voucher();
+        voucher.setShopId(1L);
+        voucher.setTitle("压测秒杀券");
+        voucher.setPayValue(100L);
+        voucher.setActualValue(200L);
+        voucher.setType(1);
+        voucher.setStatus(1);
+        voucher.setStock(STOCK);
+        voucher.setBeginTime(LocalDateTime.now().minusMinutes(1));
+        voucher.setEndTime(LocalDateTime.now().plusHours(1));
+        Result created = rest.postForObject(baseUrl + "/voucher/seckill", voucher, Result.class);
+        Long voucherId = Long.valueOf(created.getData().toString());
+
+        // 2.模拟登录用户，直接写入token
+        for (int i = 1; i <= USERS; i++) {
+            Map<String, String> user = new HashMap<>(4);
+            user.put("id", String.valueOf(i));
+            user.put("nickName", "loadtest_" + i);
+            user.put("icon", "");
+            stringRedisTemplate.opsForHash().putAll(RedisConstants.LOGIN_USER_KEY + "loadtest-" + i, user);
+        }
+
+        // 3.打乱请求顺序后并发秒杀，每个用户请求多次以覆盖重复下单
+        List<Integer> requests = new ArrayList<>(USERS * REQUESTS_PER_USER);
+        for (int r = 0; r < REQUESTS_PER_USER; r++) {
+            for (int i = 1; i <= USERS; i++) {
+                requests.add(i);
+            }
+        }
+        Collections.shuffle(requests, new Random(42));
+        long[] latencies = new long[requests.size()];
+        Map<String, AtomicInteger> outcomes = new ConcurrentHashMap<>();
+        // 每个用户收到的下单成功响应数和返回的订单id，数据库有唯一索引兜底，重复下单要在响应中检查
+        AtomicIntegerArray acceptedPerUser = new AtomicIntegerArray(USERS + 1);
+        Set<Long> acceptedOrderIds = ConcurrentHashMap.newKeySet();
+        AtomicInteger next = new AtomicInteger();
+        ExecutorService es = Executors.newFixedThreadPool(CONCURRENCY);
+        CountDownLatch latch = new CountDownLatch(CONCURRENCY);
+        long begin = System.nanoTime();
+        for (int t = 0; t < CONCURRENCY; t++) {
+            es.submit(() -> {
+                try {
+                    int i;
+                    while ((i = next.getAndIncrement()) < requests.size()) {
+                        HttpHeaders headers = new HttpHeaders();
+                        headers.set("authorization", "loadtest-" + requests.get(i));
+                        long start = System.nanoTime();
+                        String outcome;
+                        try {
+                            String body = rest.exchange(baseUrl + "/voucher-order/seckill/" + voucherId,
+                                    HttpMethod.POST, new HttpEntity<>(headers), String.class).getBody();
+                            JSONObject json = JSONUtil.parseObj(body);
+                            outcome = json.getBool("success") ? "成功" : json.getStr("errorMsg");
+                            if (json.getBool("success")) {
+                                acceptedPerUser.incrementAndGet(requests.get(i));
+                                acceptedOrderIds.add(json.getLong("data"));
+                            }
+                        } catch (Exception e) {
+                            outcome = e.getClass().getSimpleName();
+                        }
+                        latencies[i] = System.nanoTime() - start;
+                        outcomes.computeIfAbsent(outcome, k -> new AtomicInteger()).incrementAndGet();
+                    }
+                } finally {
+                    latch.countDown();
+                }
+            });
+        }
+        latch.await();
+        long elapsed = System.nanoTime() - begin;
+        es.shutdown();
+
+        // 4.等待异步订单全部落库
+        int accepted = outcomes.getOrDefault("成功", new AtomicInteger()).get();
+        long deadline = System.currentTimeMillis() + 30_000;
+        int persisted = 0;
+        while (System.currentTimeMillis() < deadline) {
+            persisted = countOrders(voucherId);
+            if (persisted >= accepted) {
+                break;
+            }
+            Thread.sleep(200);
+        }
+
+        // 5.校验超卖和重复下单
+        int dbStock = jdbcTemplate.queryForObject(
+                "SELECT stock FROM tb_seckill_voucher WHERE voucher_id = ?", Integer.class, voucherId);
+        int oversold = Math.max(0, persisted - STOCK) + Math.max(0, -dbStock);
+        // 5.1.同一用户多次下单成功，或者两次成功返回了同一个订单id
+        int duplicates = accepted - acceptedOrderIds.size();
+        Set<Long> acceptedUsers = new HashSet<>();
+        for (int u = 1; u <= USERS; u++) {
+            duplicates += Math.max(0, acceptedPerUser.get(u) - 1);
+            if (acceptedPerUser.get(u) > 0) {
+                acceptedUsers.add((long) u);
+            }
+        }
+        // 5.2.Redis中的已下单用户、数据库中的订单、下单成功的用户应当是同一批
+        Set<Long> redisUsers = new HashSet<>();
+        stringRedisTemplate.opsForSet().members(SeckillKeys.orderKey(voucherId)).forEach(u -> redisUsers.add(Long.valueOf(u)));
+        List<Long> dbUserRows = jdbcTemplate.queryForList(
+                "SELECT user_id FROM tb_voucher_order WHERE voucher_id = ? AND status <> 4", Long.class, voucherId);
+        Set<Long> dbUsers = new HashSet<>(dbUserRows);
+
+        // 6.输出报告
+        Arrays.sort(latencies);
+        double seconds = elapsed / 1e9;
+        System.out.println("========== 秒杀压测报告 ==========");
+        System.out.printf("用户数=%d 并发=%d 库存=%d 每用户请求=%d%n", USERS, CONCURRENCY, STOCK, REQUESTS_PER_USER);
+        System.out.printf("请求数=%d 耗时=%.2fs 吞吐量=%.0f req/s%n", latencies.length, seconds, latencies.length / seconds);
+        System.out.printf("延迟 p50=%.2fms p99=%.2fms p999=%.2fms max=%.2fms%n",
+                percentile(latencies, 0.50), percentile(latencies, 0.99),
+                percentile(latencies, 0.999), latencies[latencies.length - 1] / 1e6);
+        System.out.println("请求结果=" + outcomes);
+        System.out.printf("落库订单=%d 剩余库存=%d 超卖=%d 重复下单=%d%n", persisted, dbStock, oversold, duplicates);
+        System.out.println("指标=" + rest.exchange(baseUrl + "/admin/voucher-order/metrics", HttpMethod.GET,
+                new HttpEntity<>(authHeaders()), String.class).getBody());
+
+        assertEquals(accepted, persisted, "受理的订单没有全部落库");
+        assertEquals(0, oversold, "出现超卖");
+        assertEquals(0, duplicates, "出现重复下单");
+        assertEquals(dbUsers.size(), dbUserRows.size(), "数据库中同一用户有多笔订单");
+        assertEquals(acceptedUsers, dbUsers, "下单成功的用户与数据库中的订单不一致");
+        assertEquals(redisUsers, dbUsers, "Redis中的已下单用户与数据库中的订单不一致");
+
+        // 7.落库完成后Redis和数据库应当一致，以数据库为准修复不应改动任何用户
+        // 秒杀进行中不能修复，先结束秒杀；最后一批订单落库后ACK之前也会拒绝，稍后重试
+        jdbcTemplate.update("UPDATE tb_seckill_voucher SET end_time = ? WHERE voucher_id = ?",
+                LocalDateTime.now().minusSeconds(1), voucherId);
+        JSONObject repair = null;
+        for (int i = 0; i < 10 && repair == null; i++) {
+            JSONObject body = JSONUtil.parseObj(rest.exchange(baseUrl + "/admin/voucher-order/reconcile/" + voucherId + "?source=db",
+                    HttpMethod.POST, new HttpEntity<>(authHeaders()), String.class).getBody());
+            if (body.getBool("success")) {
+                repair = body.getJSONObject("data");
+            } else {
+                System.out.println("对账被拒绝：" + body.getStr("errorMsg"));
+                Thread.sleep(200);
+            }
+        }
+        assertNotNull(repair, "对账一直被拒绝");
+        System.out.println("对账=" + repair);
+        assertEquals(0, repair.getInt("removedUsers").intValue(), "Redis中有未落库的用户");
+        assertEquals(0, repair.getInt("addedUsers").intValue(), "数据库中有Redis没有记录的用户");
+
+        // 8.正常压测不应产生死信订单
+        JSONObject deadLetters = JSONUtil.parseObj(rest.exchange(baseUrl + "/admin/voucher-order/dead-letters",
+                HttpMethod.GET, new HttpEntity<>(authHeaders()), String.class).getBody());
+        assertEquals(0, deadLetters.getInt("total").intValue(), "出现死信订单");
+    }
+
+    private int countOrders(Long voucherId) {
+        return jdbcTemplate.queryForObject(
+                "SELECT COUNT(*) FROM tb_voucher_order WHERE voucher_id = ?", Integer.class, voucherId);
+    }
+
+    private static HttpHeaders authHeaders() {
+        HttpHeaders headers = new HttpHeaders();
+        headers.set("authorization", "loadtest-1");
+        return headers;
+    }
+
+    private static double percentile(long[] sorted, double p) {
+        int i = (int) Math.min(sorted.length - 1, Math.ceil(p * sorted.length) - 1);
+        return sorted[Math.max(0, i)] / 1e6;
+    }
+
+    private static int freePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+}
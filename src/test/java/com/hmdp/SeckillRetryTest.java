@@ -0,0 +1,151 @@
+package com.hmdp;
+
+import com.hmdp.utils.RedisConstants;
+import com.hmdp.utils.SeckillKeys;
+import org.h2.api.Trigger;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.test.context.ActiveProfiles;
+import org.springframework.test.context.DynamicPropertyRegistry;
+import org.springframework.test.context.DynamicPropertySource;
+import redis.embedded.RedisServer;
+
+import javax.annotation.Resource;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * 落库重试：MySQL持续失败、重试队列占满时，下单通道和重试线程争用名额不能死锁，MySQL恢复后所有订单都要落库。
+ * MySQL故障由H2触发器模拟，插入订单时抛出可重试的异常（SQLState 40001）。
+ * <p>
+ * 运行：mvn test -P loadtest -Dtest=SeckillRetryTest
+ */
+@Tag("loadtest")
+@ActiveProfiles("loadtest")
+@SpringBootTest(properties = {
+        "hmdp.seckill.retry.capacity=2",
+        "hmdp.seckill.retry.max-attempts=100000",
+        "hmdp.seckill.retry.base-delay=5",
+        "hmdp.seckill.retry.max-delay=20",
+        "hmdp.seckill.order-batch-size=4"
+})
+class SeckillRetryTest {
+
+    private static final int ORDERS = 40;
+    private static final long VOUCHER_ID = 9001L;
+
+    // 为true时插入订单失败
+    private static volatile boolean failing;
+
+    private static final RedisServer REDIS_SERVER;
+    private static final int REDIS_PORT;
+    static {
+        try {
+            REDIS_PORT = freePort();
+            REDIS_SERVER = RedisServer.newRedisServer().port(REDIS_PORT).setting("save \"\"").build();
+            REDIS_SERVER.start();
+        } catch (IOException e) {
+            throw new IllegalStateException("启动内嵌Redis失败", e);
+        }
+    }
+
+    @DynamicPropertySource
+    static void redisProperties(DynamicPropertyRegistry registry) {
+        registry.add("spring.redis.host", () -> "127.0.0.1");
+        registry.add("spring.redis.port", () -> REDIS_PORT);
+    }
+
+    @AfterAll
+    static void stopRedis() throws IOException {
+        REDIS_SERVER.stop();
+    }
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private JdbcTemplate jdbcTemplate;
+
+    /**
+     * 模拟MySQL故障：failing为true时拒绝插入订单
+     */
+    public static class FailingTrigger implements Trigger {
+
+        @Override
+        public void init(Connection conn, String schemaName, String triggerName, String tableName,
+                         boolean before, int type) {
+        }
+
+        @Override
+        public void fire(Connection conn, Object[] oldRow, Object[] newRow) throws SQLException {
+            if (failing) {
+                throw new SQLException("模拟MySQL故障", "40001");
+            }
+        }
+
+        @Override
+        public void close() {
+        }
+
+        @Override
+        public void remove() {
+        }
+    }
+
+    @Test
+    void retryQueueSaturated() throws Exception {
+        // 1.库存充足的秒杀券，插入订单持续失败
+        jdbcTemplate.update("INSERT INTO tb_seckill_voucher (voucher_id, stock, begin_time, end_time) " +
+                "VALUES (?, ?, NOW(), NOW())", VOUCHER_ID, ORDERS);
+        jdbcTemplate.execute("CREATE TRIGGER IF NOT EXISTS fail_voucher_order BEFORE INSERT ON tb_voucher_order " +
+                "FOR EACH ROW CALL \"" + FailingTrigger.class.getName() + "\"");
+        failing = true;
+        try {
+            // 2.订单直接写入消息队列，数量远大于重试队列容量
+            String streamKey = SeckillKeys.streamKey(SeckillKeys.partition(VOUCHER_ID));
+            for (int i = 1; i <= ORDERS; i++) {
+                Map<String, String> fields = new HashMap<>(4);
+                fields.put("id", String.valueOf(VOUCHER_ID * 1000 + i));
+                fields.put("userId", String.valueOf(i));
+                fields.put("voucherId", String.valueOf(VOUCHER_ID));
+                stringRedisTemplate.opsForStream().add(streamKey, fields);
+            }
+            // 3.持续失败一段时间，下单通道阻塞在重试名额上，重试线程不断失败重排
+            Thread.sleep(3000);
+        } finally {
+            // 4.MySQL恢复
+            failing = false;
+        }
+
+        // 5.所有订单都应当落库，没有死信
+        long deadline = System.currentTimeMillis() + 20_000;
+        int persisted = 0;
+        while (System.currentTimeMillis() < deadline) {
+            persisted = jdbcTemplate.queryForObject(
+                    "SELECT COUNT(*) FROM tb_voucher_order WHERE voucher_id = ?", Integer.class, VOUCHER_ID);
+            if (persisted >= ORDERS) {
+                break;
+            }
+            Thread.sleep(200);
+        }
+        assertEquals(ORDERS, persisted, "MySQL恢复后订单没有全部落库");
+        assertEquals(0L, stringRedisTemplate.opsForStream().size(RedisConstants.SECKILL_DEAD_LETTER_KEY).longValue(),
+                "出现死信订单");
+    }
+
+    private static int freePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+}
@@ -0,0 +1,64 @@
+-- 压测用内存库表结构，与 hmdp.sql 中秒杀相关的表以及启动时扫描的店铺表保持一致（H2 MySQL兼容模式）
+DROP TABLE IF EXISTS `tb_voucher`;
+CREATE TABLE `tb_voucher`  (
+  `id` bigint(20) NOT NULL AUTO_INCREMENT,
+  `shop_id` bigint(20) NULL DEFAULT NULL,
+  `title` varchar(255) NOT NULL,
+  `sub_title` varchar(255) NULL DEFAULT NULL,
+  `rules` varchar(1024) NULL DEFAULT NULL,
+  `pay_value` bigint(10) NOT NULL,
+  `actual_value` bigint(10) NOT NULL,
+  `type` tinyint(1) NOT NULL DEFAULT 0,
+  `status` tinyint(1) NOT NULL DEFAULT 1,
+  `create_time` timestamp NOT NULL DEFAULT CURRENT_TIMESTAMP,
+  `update_time` timestamp NOT NULL DEFAULT CURRENT_TIMESTAMP,
+  PRIMARY KEY (`id`)
+);
+
+DROP TABLE IF EXISTS `tb_seckill_voucher`;
+CREATE TABLE `tb_seckill_voucher`  (
+  `voucher_id` bigint(20) NOT NULL,
+  `stock` int(8) NOT NULL,
+  `create_time` timestamp NOT NULL DEFAULT CURRENT_TIMESTAMP,
+  `begin_time` timestamp NOT NULL,
+  `end_time` timestamp NOT NULL,
+  `update_time` timestamp NOT NULL DEFAULT CURRENT_TIMESTAMP,
+  PRIMARY KEY (`voucher_id`)
+);
+
+DROP TABLE IF EXISTS `tb_voucher_order`;
+CREATE TABLE `tb_voucher_order`  (
+  `id` bigint(20) NOT NULL,
+  `user_id` bigint(20) NOT NULL,
+  `voucher_id` bigint(20) NOT NULL,
+  `pay_type` tinyint(1) NOT NULL DEFAULT 1,
+  `status` tinyint(1) NOT NULL DEFAULT 1,
+  `create_time` timestamp NOT NULL DEFAULT CURRENT_TIMESTAMP,
+  `pay_time` timestamp NULL DEFAULT NULL,
+  `use_time` timestamp NULL DEFAULT NULL,
+  `refund_time` timestamp NULL DEFAULT NULL,
+  `update_time` timestamp NOT NULL DEFAULT CURRENT_TIMESTAMP,
+  `live` tinyint(1) NULL DEFAULT 1,
+  PRIMARY KEY (`id`),
+  UNIQUE KEY `uk_voucher_user` (`voucher_id`, `user_id`, `live`)
+);
+
+DROP TABLE IF EXISTS `tb_shop`;
+CREATE TABLE `tb_shop`  (
+  `id` bigint(20) NOT NULL AUTO_INCREMENT,
+  `name` varchar(128) NOT NULL,
+  `type_id` bigint(20) NOT NULL,
+  `images` varchar(1024) NOT NULL,
+  `area` varchar(128) NULL DEFAULT NULL,
+  `address` varchar(255) NOT NULL,
+  `x` double NOT NULL,
+  `y` double NOT NULL,
+  `avg_price` bigint(10) NULL DEFAULT NULL,
+  `sold` int(10) NOT NULL,
+  `comments` int(10) NOT NULL,
+  `score` int(2) NOT NULL,
+  `open_hours` varchar(32) NULL DEFAULT NULL,
+  `create_time` timestamp NULL DEFAULT CURRENT_TIMESTAMP,
+  `update_time` timestamp NULL DEFAULT CURRENT_TIMESTAMP,
+  PRIMARY KEY (`id`)
+);